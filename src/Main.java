@@ -3,9 +3,41 @@
  */
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 class Customer {
     String id;
@@ -14,14 +46,17 @@ class Customer {
 
 
     List<Claim> claims;
-    List<Customer> dependents;
+    // Sets, so links can be tested and removed without scanning; insertion order is kept for display
+    Set<Customer> dependents;
+    Set<Customer> policyHolders; // Reverse of dependents, kept in step by addDependent and removeDependent
     String role; // Add a field for the role
 
     public Customer(String id, String fullName) {
         this.id = id;
         this.fullName = fullName;
         this.claims = new ArrayList<>();
-        this.dependents = new ArrayList<>();
+        this.dependents = new LinkedHashSet<>();
+        this.policyHolders = new LinkedHashSet<>();
     }
 
 
@@ -61,7 +96,12 @@ class Customer {
 
 
     public void setDependents(List<Customer> dependents) {
-        this.dependents = dependents;
+        for (Customer dependent : new ArrayList<>(this.dependents)) {
+            removeDependent(dependent);
+        }
+        for (Customer dependent : dependents) {
+            addDependent(dependent);
+        }
     }
 
 
@@ -79,13 +119,19 @@ class Customer {
     }
 
     public void addDependent(Customer dependent) {
-        if (this.dependents != null) {
-            this.dependents.add(dependent);
+        if (this.dependents != null && this.dependents.add(dependent)) {
+            dependent.policyHolders.add(this);
+        }
+    }
+
+    public void removeDependent(Customer dependent) {
+        if (this.dependents.remove(dependent)) {
+            dependent.policyHolders.remove(this);
         }
     }
 
     public List<Customer> getDependents() {
-        return this.dependents;
+        return new ArrayList<>(this.dependents);
     }
 
     public void updateInsuranceCardNumber(String newCardNumber) {
@@ -133,6 +179,154 @@ class InsuranceCard {
         return input;
     }
 }
+// Customers and insurance cards by key, with policy holder <-> dependent links kept in both directions
+// (Customer.dependents and Customer.policyHolders) and customers indexed by card number. Deletes and family
+// lookups follow these links, so they touch only the customers involved instead of scanning every customer.
+class CustomerGraph {
+    private final Map<String, Customer> customersById = new LinkedHashMap<>();
+    private final Map<String, InsuranceCard> cardsByNumber = new LinkedHashMap<>();
+    private final Map<String, Set<Customer>> customersByCard = new HashMap<>();
+
+    public boolean addCustomer(Customer customer) {
+        if (customersById.putIfAbsent(customer.id, customer) != null) {
+            return false;
+        }
+        indexCard(customer);
+        return true;
+    }
+
+    public Customer getCustomer(String customerId) {
+        return customersById.get(customerId);
+    }
+
+    public boolean containsCustomer(String customerId) {
+        return customersById.containsKey(customerId);
+    }
+
+    public Collection<Customer> getAllCustomers() {
+        return Collections.unmodifiableCollection(customersById.values());
+    }
+
+    // Removes the customer and every link to it. With cascade, dependents of a removed policy holder that no other
+    // policy holder covers are removed as well. Returns every customer removed, the requested one first.
+    public List<Customer> removeCustomer(String customerId, boolean cascadeDependents) {
+        List<Customer> removed = new ArrayList<>();
+        Customer customer = customersById.get(customerId);
+        if (customer != null) {
+            removeCustomer(customer, cascadeDependents, removed);
+        }
+        return removed;
+    }
+
+    private void removeCustomer(Customer customer, boolean cascadeDependents, List<Customer> removed) {
+        customersById.remove(customer.id);
+        unindexCard(customer);
+        removed.add(customer);
+        for (Customer policyHolder : new ArrayList<>(customer.policyHolders)) {
+            policyHolder.removeDependent(customer);
+        }
+        for (Customer dependent : new ArrayList<>(customer.dependents)) {
+            customer.removeDependent(dependent);
+            if (cascadeDependents && dependent.policyHolders.isEmpty() && customersById.containsKey(dependent.id)) {
+                removeCustomer(dependent, true, removed);
+            }
+        }
+    }
+
+    // Dependents of the customer that would be removed along with it by a cascading delete
+    public List<Customer> getSoleDependents(String customerId) {
+        List<Customer> soleDependents = new ArrayList<>();
+        Customer customer = customersById.get(customerId);
+        if (customer != null) {
+            for (Customer dependent : customer.dependents) {
+                if (dependent.policyHolders.size() == 1) {
+                    soleDependents.add(dependent);
+                }
+            }
+        }
+        return soleDependents;
+    }
+
+    public boolean link(String policyHolderId, String dependentId) {
+        Customer policyHolder = customersById.get(policyHolderId);
+        Customer dependent = customersById.get(dependentId);
+        if (policyHolder == null || dependent == null || policyHolder == dependent
+                || policyHolder.dependents.contains(dependent)) {
+            return false;
+        }
+        policyHolder.addDependent(dependent);
+        return true;
+    }
+
+    // The policy holders covering the customer (or the customer itself, if it is one) followed by all of their dependents
+    public List<Customer> getFamily(String customerId) {
+        Customer customer = customersById.get(customerId);
+        if (customer == null) {
+            return Collections.emptyList();
+        }
+        Set<Customer> family = new LinkedHashSet<>();
+        if (customer.policyHolders.isEmpty()) {
+            family.add(customer);
+        } else {
+            family.addAll(customer.policyHolders);
+        }
+        for (Customer policyHolder : new ArrayList<>(family)) {
+            family.addAll(policyHolder.dependents);
+        }
+        return new ArrayList<>(family);
+    }
+
+    public List<Customer> getCustomersByCard(String cardNumber) {
+        Set<Customer> holders = customersByCard.get(cardNumber);
+        return holders == null ? Collections.emptyList() : new ArrayList<>(holders);
+    }
+
+    public void changeCardNumber(Customer customer, String newCardNumber) {
+        unindexCard(customer);
+        customer.updateInsuranceCardNumber(newCardNumber);
+        indexCard(customer);
+    }
+
+    public boolean addCard(InsuranceCard card) {
+        return cardsByNumber.putIfAbsent(card.cardNumber, card) == null;
+    }
+
+    public InsuranceCard getCard(String cardNumber) {
+        return cardsByNumber.get(cardNumber);
+    }
+
+    public Collection<InsuranceCard> getAllCards() {
+        return Collections.unmodifiableCollection(cardsByNumber.values());
+    }
+
+    // Callers check getCustomersByCard first; a card still held by a customer is not removed
+    public boolean removeCard(String cardNumber) {
+        if (customersByCard.containsKey(cardNumber)) {
+            return false;
+        }
+        return cardsByNumber.remove(cardNumber) != null;
+    }
+
+    private void indexCard(Customer customer) {
+        if (customer.insuranceCard != null && customer.insuranceCard.cardNumber != null) {
+            customersByCard.computeIfAbsent(customer.insuranceCard.cardNumber, k -> new LinkedHashSet<>()).add(customer);
+        }
+    }
+
+    private void unindexCard(Customer customer) {
+        if (customer.insuranceCard == null || customer.insuranceCard.cardNumber == null) {
+            return;
+        }
+        Set<Customer> holders = customersByCard.get(customer.insuranceCard.cardNumber);
+        if (holders != null) {
+            holders.remove(customer);
+            if (holders.isEmpty()) {
+                customersByCard.remove(customer.insuranceCard.cardNumber);
+            }
+        }
+    }
+}
+
 class Claim {
     String id;
     Date claimDate;
@@ -156,205 +350,4878 @@ class Claim {
         this.status = status;
         this.receiverBankingInfo = receiverBankingInfo;
     }
-}
 
-interface ClaimProcessManager {
-    void add(Claim claim);
-    void update(Claim claim);
-    void delete(String claimId);
-    Claim getOne(String claimId);
-    List<Claim> getAll();
-    List<String> getAllClaimIds(); // New method to retrieve all claim IDs
+    // Independent copy to edit, so managers can compare it with the stored claim on update
+    public Claim copy() {
+        return new Claim(id, claimDate, insuredPerson, cardNumber, examDate,
+                documents == null ? null : new ArrayList<>(documents), claimAmount, status, receiverBankingInfo);
+    }
 }
 
-class SimpleClaimProcessManager implements ClaimProcessManager {
-    private Map<String, Claim> claims;
+// In-memory name lookup over the words of each name: a sorted word map answers prefix queries and a
+// trigram index over the distinct words finds misspellings. Ids are grouped under their normalised name,
+// so a name shared by many records is only indexed once, and the trigram index only grows with the vocabulary.
+class NameSearchIndex {
+    private static final int MAX_CANDIDATES = 1000;
+
+    private final Map<String, String> nameById = new HashMap<>();
+    private final Map<String, Set<String>> idsByName = new HashMap<>();
+    private final TreeMap<String, Set<String>> namesByWord = new TreeMap<>();
+    private final Map<String, Set<String>> wordsByGram = new HashMap<>();
+
+    public synchronized void put(String id, String name) {
+        String normalized = normalize(name);
+        String previous = nameById.put(id, normalized);
+        if (normalized.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            unlink(id, previous);
+        }
+        Set<String> ids = idsByName.get(normalized);
+        if (ids == null) {
+            ids = new HashSet<>();
+            idsByName.put(normalized, ids);
+            // First record with this name, so link it to its words
+            for (String word : words(normalized)) {
+                Set<String> names = namesByWord.get(word);
+                if (names == null) {
+                    names = new HashSet<>();
+                    namesByWord.put(word, names);
+                    for (String gram : grams(word)) {
+                        wordsByGram.computeIfAbsent(gram, k -> new HashSet<>()).add(word);
+                    }
+                }
+                names.add(normalized);
+            }
+        }
+        ids.add(id);
+    }
 
-    public SimpleClaimProcessManager() {
-        claims = new HashMap<>();
+    public synchronized void remove(String id) {
+        String previous = nameById.remove(id);
+        if (previous != null) {
+            unlink(id, previous);
+        }
     }
 
-    @Override
-    public void add(Claim claim) {
-        claims.put(claim.id, claim);
+    public synchronized int size() {
+        return nameById.size();
     }
-    @Override
-    public void update(Claim claim) {
-        if (claims.containsKey(claim.id)) {
-            claims.put(claim.id, claim);
+
+    // IDs whose normalised name is exactly this one
+    public synchronized Set<String> idsWithName(String name) {
+        Set<String> ids = idsByName.get(normalize(name));
+        return ids == null ? Collections.emptySet() : new HashSet<>(ids);
+    }
+
+    // Returns up to limit ids ranked by how well each query word matches a word of the name:
+    // exact words first, then prefixes, then words within one or two typos
+    public synchronized List<String> search(String query, int limit) {
+        String normalized = normalize(query);
+        List<String> result = new ArrayList<>();
+        if (normalized.isEmpty() || limit <= 0) {
+            return result;
+        }
+
+        List<String> queryWords = words(normalized);
+        List<Map<String, Integer>> costsByQueryWord = new ArrayList<>();
+        int driver = 0;
+        long driverNames = Long.MAX_VALUE;
+        for (int i = 0; i < queryWords.size(); i++) {
+            Map<String, Integer> costs = matchingWords(queryWords.get(i));
+            if (costs.isEmpty()) {
+                return result;
+            }
+            costsByQueryWord.add(costs);
+            // Drive the scan from the query word that matches the fewest names
+            long names = 0;
+            for (String word : costs.keySet()) {
+                names += namesByWord.get(word).size();
+            }
+            if (names < driverNames) {
+                driver = i;
+                driverNames = names;
+            }
+        }
+
+        Map<String, Integer> scoreByName = new HashMap<>();
+        List<String> driverWords = new ArrayList<>(costsByQueryWord.get(driver).keySet());
+        Map<String, Integer> driverCosts = costsByQueryWord.get(driver);
+        driverWords.sort(Comparator.comparing((String word) -> driverCosts.get(word)).thenComparing(word -> word));
+        candidateScan:
+        for (String word : driverWords) {
+            for (String name : namesByWord.get(word)) {
+                if (scoreByName.size() >= MAX_CANDIDATES) {
+                    break candidateScan;
+                }
+                int score = score(name, normalized, costsByQueryWord);
+                if (score >= 0) {
+                    scoreByName.merge(name, score, Math::min);
+                }
+            }
+        }
+
+        List<String> names = new ArrayList<>(scoreByName.keySet());
+        names.sort(Comparator.comparing((String name) -> scoreByName.get(name)).thenComparing(name -> name));
+        for (String name : names) {
+            for (String id : idsByName.get(name)) {
+                if (result.size() == limit) {
+                    return result;
+                }
+                result.add(id);
+            }
         }
+        return result;
     }
-    public List<String> getAllClaimIds() {
-        return new ArrayList<>(claims.keySet());
+
+    // Indexed words that match one query word, with 0 for the word itself, 1 for a prefix and 1 + typos otherwise
+    private Map<String, Integer> matchingWords(String queryWord) {
+        Map<String, Integer> costs = new HashMap<>();
+        for (String word : namesByWord.subMap(queryWord, queryWord + Character.MAX_VALUE).keySet()) {
+            if (costs.size() >= MAX_CANDIDATES) {
+                break;
+            }
+            costs.put(word, word.equals(queryWord) ? 0 : 1);
+        }
+
+        // Only words sharing enough trigrams are worth an edit distance check
+        Map<String, Integer> sharedGrams = new HashMap<>();
+        List<String> queryGrams = grams(queryWord);
+        for (String gram : queryGrams) {
+            Set<String> words = wordsByGram.get(gram);
+            if (words != null) {
+                for (String word : words) {
+                    sharedGrams.merge(word, 1, Integer::sum);
+                }
+            }
+        }
+        int minShared = Math.max(1, queryGrams.size() / 3);
+        int maxTypos = queryWord.length() <= 4 ? 1 : 2;
+        for (Map.Entry<String, Integer> entry : sharedGrams.entrySet()) {
+            String word = entry.getKey();
+            if (entry.getValue() >= minShared && !costs.containsKey(word)) {
+                int distance = editDistance(queryWord, word, maxTypos);
+                if (distance <= maxTypos) {
+                    costs.put(word, 1 + distance);
+                }
+            }
+        }
+        return costs;
     }
 
-    @Override
-    public void delete(String claimId) {
-        claims.remove(claimId);
+    // Sum of the best cost for each query word, or -1 when some query word matches nothing in the name
+    private static int score(String name, String query, List<Map<String, Integer>> costsByQueryWord) {
+        if (name.equals(query)) {
+            return 0;
+        }
+        List<String> nameWords = words(name);
+        int score = 1; // Anything but the exact name ranks after it
+        for (Map<String, Integer> costs : costsByQueryWord) {
+            int best = -1;
+            for (String word : nameWords) {
+                Integer cost = costs.get(word);
+                if (cost != null && (best < 0 || cost < best)) {
+                    best = cost;
+                }
+            }
+            if (best < 0) {
+                return -1;
+            }
+            score += best;
+        }
+        return score;
     }
 
-    @Override
-    public Claim getOne(String claimId) {
-        return claims.get(claimId);
+    private void unlink(String id, String name) {
+        Set<String> ids = idsByName.get(name);
+        if (ids == null) {
+            return;
+        }
+        ids.remove(id);
+        if (!ids.isEmpty()) {
+            return;
+        }
+        // Last record with this name is gone, so unlink it from its words and drop words nobody uses
+        idsByName.remove(name);
+        for (String word : words(name)) {
+            Set<String> names = namesByWord.get(word);
+            if (names == null) {
+                continue;
+            }
+            names.remove(name);
+            if (names.isEmpty()) {
+                namesByWord.remove(word);
+                for (String gram : grams(word)) {
+                    Set<String> words = wordsByGram.get(gram);
+                    if (words != null) {
+                        words.remove(word);
+                        if (words.isEmpty()) {
+                            wordsByGram.remove(gram);
+                        }
+                    }
+                }
+            }
+        }
     }
 
-    @Override
-    public List<Claim> getAll() {
-        return new ArrayList<>(claims.values());
+    // Lower case with single spaces. Shared by claim queries and duplicate fingerprints, so every name comparison
+    // agrees; written out by hand because a regex per claim dominates full scans.
+    static String normalize(String name) {
+        if (name == null) {
+            return "";
+        }
+        StringBuilder normalized = new StringBuilder(name.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    normalized.append(' ');
+                    pendingSpace = false;
+                }
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static List<String> words(String name) {
+        return name.isEmpty() ? new ArrayList<>() : Arrays.asList(name.split(" "));
+    }
+
+    private static List<String> grams(String word) {
+        String padded = "$" + word + "$";
+        List<String> grams = new ArrayList<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + 3));
+        }
+        return grams;
+    }
+
+    // Levenshtein distance that gives up once every path exceeds max
+    private static int editDistance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
     }
 }
 
-class FileManager {
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+// Ordered index from one claim field to claim IDs. Range scans walk only the matching keys, so they cost
+// O(log n + k) and return a lazy iterator that stays valid while claims are added or removed.
+class SortedClaimIndex<K extends Comparable<K>> {
+    private final Function<Claim, K> keyOf;
+    private final ConcurrentSkipListMap<K, Set<String>> idsByKey = new ConcurrentSkipListMap<>();
+    private final Map<String, K> keyById = new ConcurrentHashMap<>();
 
-    public static List<Customer> loadCustomers(String filePath) {
-        List<Customer> customers = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String id = parts[0];
-                String fullName = parts[1];
-                String role = parts[2]; // Assuming role is the third field in the file
-                String cardNumber = parts[3]; // Assuming card number is the fourth field in the file
+    public SortedClaimIndex(Function<Claim, K> keyOf) {
+        this.keyOf = keyOf;
+    }
+
+    // Claims are edited in place, so the previous key is remembered per ID rather than read from the claim
+    public synchronized void put(Claim claim) {
+        remove(claim.id);
+        K key = keyOf.apply(claim);
+        if (key == null) {
+            return; // Claims without a value for this field are not indexed
+        }
+        idsByKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(claim.id);
+        keyById.put(claim.id, key);
+    }
 
-                // Create a new Customer object with insurance card information
-                Customer customer = new Customer(id, fullName);
-                customer.setRole(role);
+    public synchronized void remove(String claimId) {
+        K key = keyById.remove(claimId);
+        if (key == null) {
+            return;
+        }
+        Set<String> ids = idsByKey.get(key);
+        if (ids != null) {
+            ids.remove(claimId);
+            if (ids.isEmpty()) {
+                idsByKey.remove(key);
+            }
+        }
+    }
 
-                // Create an InsuranceCard object with card number and set it to the customer
-                InsuranceCard insuranceCard = new InsuranceCard(cardNumber, "", "", null);
-                customer.setInsuranceCard(insuranceCard);
+    // IDs with from <= key <= to in key order; a null bound leaves that side open
+    public Iterator<String> range(K from, K to) {
+        return rangeMap(from, to).values().stream().flatMap(Set::stream).iterator();
+    }
 
-                customers.add(customer);
+    // Number of IDs in the range, but stops counting once it passes cap so estimating a wide range stays cheap
+    public long countUpTo(K from, K to, long cap) {
+        long count = 0;
+        for (Set<String> ids : rangeMap(from, to).values()) {
+            count += ids.size();
+            if (count > cap) {
+                break;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return customers;
+        return count;
     }
 
-    public static List<Claim> loadClaims(String filePath) {
-        List<Claim> claims = new ArrayList<>();
-        Set<String> existingIds = new HashSet<>(); // To track existing claim IDs
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String id = parts[0];
-
-                // Check if the ID already exists
-                if (existingIds.contains(id)) {
-                    System.out.println("Error: Duplicate claim ID found in the file. Skipping.");
-                    continue; // Skip adding this claim
-                }
-                existingIds.add(id); // Add ID to set
-
-                Date claimDate = parts[1].isEmpty() ? null : DATE_FORMAT.parse(parts[1]);
-                String insuredPerson = parts[2];
-                String cardNumber = parts[3];
-                Date examDate = parts[4].isEmpty() ? null : DATE_FORMAT.parse(parts[4]);
-                // Parse documents
-                List<String> documents = Arrays.asList(parts[5].split(";"));
-                double claimAmount = Double.parseDouble(parts[6]);
-                String status = parts[7];
-                String receiverBankingInfo = parts[8];
-                claims.add(new Claim(id, claimDate, insuredPerson, cardNumber, examDate,
-                        documents, claimAmount, status, receiverBankingInfo));
-            }
-        } catch (IOException | ParseException e) {
-            e.printStackTrace();
+    private NavigableMap<K, Set<String>> rangeMap(K from, K to) {
+        if (from == null && to == null) {
+            return idsByKey;
+        } else if (from == null) {
+            return idsByKey.headMap(to, true);
+        } else if (to == null) {
+            return idsByKey.tailMap(from, true);
+        } else if (from.compareTo(to) > 0) {
+            return Collections.emptyNavigableMap();
+        } else {
+            return idsByKey.subMap(from, true, to, true);
         }
-        return claims;
     }
+}
 
+// Exact-match index from one claim field to claim IDs, maintained like SortedClaimIndex
+class HashClaimIndex {
+    private final Function<Claim, String> keyOf;
+    private final Map<String, Set<String>> idsByKey = new ConcurrentHashMap<>();
+    private final Map<String, String> keyById = new ConcurrentHashMap<>();
 
-    public static List<InsuranceCard> loadInsuranceCards(String filePath) {
-        List<InsuranceCard> cards = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String cardNumber = parts[0];
+    public HashClaimIndex(Function<Claim, String> keyOf) {
+        this.keyOf = keyOf;
+    }
 
-                // Validate card number to contain only numbers
-                if (!cardNumber.matches("\\d+")) {
-                    System.out.println("Error: Invalid card number detected in file. Only numbers are allowed.");
-                    continue;
-                }
+    public synchronized void put(Claim claim) {
+        remove(claim.id);
+        String key = keyOf.apply(claim);
+        if (key == null) {
+            return;
+        }
+        idsByKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(claim.id);
+        keyById.put(claim.id, key);
+    }
 
-                String cardHolder = parts[1];
-                String policyOwner = parts[2];
-                Date expirationDate = DATE_FORMAT.parse(parts[3]);
-                cards.add(new InsuranceCard(cardNumber, cardHolder, policyOwner, expirationDate));
+    public synchronized void remove(String claimId) {
+        String key = keyById.remove(claimId);
+        if (key == null) {
+            return;
+        }
+        Set<String> ids = idsByKey.get(key);
+        if (ids != null) {
+            ids.remove(claimId);
+            if (ids.isEmpty()) {
+                idsByKey.remove(key);
             }
-        } catch (IOException | ParseException e) {
-            e.printStackTrace();
         }
-        return cards;
     }
 
+    public Set<String> get(String key) {
+        Set<String> ids = idsByKey.get(key);
+        return ids == null ? Collections.emptySet() : ids;
+    }
+}
 
-    public static void saveCustomers(List<Customer> customers, String filePath) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            for (Customer customer : customers) {
-                // Format: id,fullName,role,cardNumber
-                String customerData = String.format("%s,%s,%s,%s",
-                        customer.getId(), customer.getFullName(), customer.getRole(), customer.getInsuranceCard().getCardNumber());
-                writer.write(customerData);
-                writer.newLine();
-            }
-            System.out.println("Customers saved to file successfully.");
-        } catch (IOException e) {
-            System.out.println("Error saving customers to file: " + e.getMessage());
+// Conjunction of optional conditions on claims, with an optional sort and limit. Unset conditions match everything.
+// Strings compare case-insensitively and ranges are inclusive.
+class ClaimQuery {
+    String status;
+    String cardNumber;
+    String insuredPerson;
+    String normalizedInsuredPerson;
+    Date claimDateFrom;
+    Date claimDateTo;
+    Date examDateFrom;
+    Date examDateTo;
+    Double minAmount;
+    Double maxAmount;
+    ClaimField sortBy;
+    boolean descending;
+    int limit = Integer.MAX_VALUE;
+    boolean useIndexes = true;
+
+    public ClaimQuery status(String status) {
+        this.status = status;
+        return this;
+    }
+
+    public ClaimQuery cardNumber(String cardNumber) {
+        this.cardNumber = cardNumber;
+        return this;
+    }
+
+    public ClaimQuery insuredPerson(String insuredPerson) {
+        this.insuredPerson = insuredPerson;
+        this.normalizedInsuredPerson = insuredPerson == null ? null : NameSearchIndex.normalize(insuredPerson);
+        return this;
+    }
+
+    public ClaimQuery claimDateBetween(Date from, Date to) {
+        this.claimDateFrom = from;
+        this.claimDateTo = to;
+        return this;
+    }
+
+    public ClaimQuery examDateBetween(Date from, Date to) {
+        this.examDateFrom = from;
+        this.examDateTo = to;
+        return this;
+    }
+
+    public ClaimQuery amountBetween(Double min, Double max) {
+        this.minAmount = min;
+        this.maxAmount = max;
+        return this;
+    }
+
+    // Only CLAIM_DATE, EXAM_DATE, CLAIM_AMOUNT, CARD_NUMBER and INSURED_PERSON are sortable
+    public ClaimQuery sortBy(ClaimField field, boolean descending) {
+        this.sortBy = field;
+        this.descending = descending;
+        return this;
+    }
+
+    public ClaimQuery limit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Limit must be at least 1, was " + limit);
         }
+        this.limit = limit;
+        return this;
     }
 
-    public static void saveClaims(List<Claim> claims, String filePath) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            for (Claim claim : claims) {
-                String claimDateStr = claim.claimDate != null ? DATE_FORMAT.format(claim.claimDate) : "";
-                String examDateStr = claim.examDate != null ? DATE_FORMAT.format(claim.examDate) : "";
-                String documents = claim.documents != null ? String.join(";", claim.documents) : "";
-                writer.write(claim.id + "," + claimDateStr + "," + claim.insuredPerson +
-                        "," + claim.cardNumber + "," + examDateStr + "," + documents +
-                        "," + claim.claimAmount + "," + claim.status + "," + claim.receiverBankingInfo);
-                writer.newLine();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Forces a full scan; used to compare plans against the unindexed baseline
+    public ClaimQuery withoutIndexes() {
+        this.useIndexes = false;
+        return this;
+    }
+
+    public boolean hasClaimDateRange() {
+        return claimDateFrom != null || claimDateTo != null;
+    }
+
+    public boolean hasExamDateRange() {
+        return examDateFrom != null || examDateTo != null;
+    }
+
+    public boolean hasAmountRange() {
+        return minAmount != null || maxAmount != null;
+    }
+
+    public boolean matches(Claim claim) {
+        return (status == null || status.equalsIgnoreCase(claim.status))
+                && (cardNumber == null || cardNumber.equals(claim.cardNumber))
+                && (insuredPerson == null || normalizedInsuredPerson.equals(NameSearchIndex.normalize(claim.insuredPerson)))
+                && (!hasClaimDateRange() || within(claim.claimDate, claimDateFrom, claimDateTo))
+                && (!hasExamDateRange() || within(claim.examDate, examDateFrom, examDateTo))
+                && (minAmount == null || claim.claimAmount >= minAmount)
+                && (maxAmount == null || claim.claimAmount <= maxAmount);
+    }
+
+    // Null when the query has no sort
+    public Comparator<Claim> comparator() {
+        if (sortBy == null) {
+            return null;
+        }
+        Comparator<Claim> order;
+        switch (sortBy) {
+            case CLAIM_DATE:
+                order = Comparator.comparing(claim -> claim.claimDate, Comparator.nullsLast(Comparator.naturalOrder()));
+                break;
+            case EXAM_DATE:
+                order = Comparator.comparing(claim -> claim.examDate, Comparator.nullsLast(Comparator.naturalOrder()));
+                break;
+            case CLAIM_AMOUNT:
+                order = Comparator.comparingDouble(claim -> claim.claimAmount);
+                break;
+            case CARD_NUMBER:
+                order = Comparator.comparing(claim -> claim.cardNumber, Comparator.nullsLast(Comparator.naturalOrder()));
+                break;
+            case INSURED_PERSON:
+                order = Comparator.comparing(claim -> NameSearchIndex.normalize(claim.insuredPerson));
+                break;
+            default:
+                throw new IllegalArgumentException("Claims cannot be sorted by " + sortBy);
+        }
+        order = order.thenComparing(claim -> claim.id);
+        return descending ? order.reversed() : order;
+    }
+
+    // Sorts and truncates a list of matching claims
+    public List<Claim> finish(List<Claim> matches) {
+        Comparator<Claim> order = comparator();
+        if (order != null) {
+            matches.sort(order);
+        }
+        return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+    }
+
+    public String describeConditions() {
+        List<String> conditions = new ArrayList<>();
+        if (status != null) {
+            conditions.add("status = " + status);
+        }
+        if (cardNumber != null) {
+            conditions.add("cardNumber = " + cardNumber);
+        }
+        if (insuredPerson != null) {
+            conditions.add("insuredPerson = " + insuredPerson);
+        }
+        if (hasClaimDateRange()) {
+            conditions.add("claimDate in [" + claimDateFrom + ", " + claimDateTo + "]");
+        }
+        if (hasExamDateRange()) {
+            conditions.add("examDate in [" + examDateFrom + ", " + examDateTo + "]");
+        }
+        if (hasAmountRange()) {
+            conditions.add("claimAmount in [" + minAmount + ", " + maxAmount + "]");
+        }
+        return conditions.isEmpty() ? "none" : String.join(" and ", conditions);
+    }
+
+    private static boolean within(Date value, Date from, Date to) {
+        return value != null && (from == null || !value.before(from)) && (to == null || !value.after(to));
+    }
+}
+
+// The access path chosen for a query: either candidate IDs from one index or a full parallel scan
+class ClaimQueryPlan {
+    String description;
+    long estimatedRows;
+    Iterator<String> candidateIds; // null for a full scan
+    boolean inSortOrder; // Candidates already come in the query's sort order, so the scan can stop at the limit
+
+    public ClaimQueryPlan(String description, long estimatedRows, Iterator<String> candidateIds, boolean inSortOrder) {
+        this.description = description;
+        this.estimatedRows = estimatedRows;
+        this.candidateIds = candidateIds;
+        this.inSortOrder = inSortOrder;
+    }
+}
+
+// Claim fields that duplicate rules, query sorts and history deltas refer to
+enum ClaimField {
+    CARD_NUMBER, INSURED_PERSON, CLAIM_DATE, EXAM_DATE, DOCUMENTS, CLAIM_AMOUNT, RECEIVER_BANKING_INFO, STATUS;
+
+    // Field as stored on the claim; amounts are boxed
+    public Object get(Claim claim) {
+        switch (this) {
+            case CARD_NUMBER:
+                return claim.cardNumber;
+            case INSURED_PERSON:
+                return claim.insuredPerson;
+            case CLAIM_DATE:
+                return claim.claimDate;
+            case EXAM_DATE:
+                return claim.examDate;
+            case DOCUMENTS:
+                return claim.documents;
+            case CLAIM_AMOUNT:
+                return claim.claimAmount;
+            case RECEIVER_BANKING_INFO:
+                return claim.receiverBankingInfo;
+            default:
+                return claim.status;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void set(Claim claim, Object value) {
+        switch (this) {
+            case CARD_NUMBER:
+                claim.cardNumber = (String) value;
+                break;
+            case INSURED_PERSON:
+                claim.insuredPerson = (String) value;
+                break;
+            case CLAIM_DATE:
+                claim.claimDate = (Date) value;
+                break;
+            case EXAM_DATE:
+                claim.examDate = (Date) value;
+                break;
+            case DOCUMENTS:
+                claim.documents = value == null ? null : new ArrayList<>((List<String>) value);
+                break;
+            case CLAIM_AMOUNT:
+                claim.claimAmount = (Double) value;
+                break;
+            case RECEIVER_BANKING_INFO:
+                claim.receiverBankingInfo = (String) value;
+                break;
+            default:
+                claim.status = (String) value;
+        }
+    }
+
+    // Normalised string used for fingerprints
+
+    public String valueOf(Claim claim) {
+        switch (this) {
+            case CARD_NUMBER:
+                return normalize(claim.cardNumber);
+            case INSURED_PERSON:
+                return NameSearchIndex.normalize(claim.insuredPerson);
+            case CLAIM_DATE:
+                return claim.claimDate == null ? "" : Long.toString(claim.claimDate.getTime());
+            case EXAM_DATE:
+                return claim.examDate == null ? "" : Long.toString(claim.examDate.getTime());
+            case DOCUMENTS:
+                if (claim.documents == null) {
+                    return "";
+                }
+                List<String> documents = new ArrayList<>();
+                for (String document : claim.documents) {
+                    documents.add(normalize(document));
+                }
+                Collections.sort(documents);
+                return String.join(";", documents);
+            case CLAIM_AMOUNT:
+                return Double.toString(claim.claimAmount);
+            case RECEIVER_BANKING_INFO:
+                return normalize(claim.receiverBankingInfo);
+            default:
+                return normalize(claim.status);
+        }
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().toLowerCase();
+    }
+}
+
+// Claims that agree on every field of the rule are reported together under the rule's name
+class DuplicateRule {
+    String name;
+    EnumSet<ClaimField> fields;
+
+    public DuplicateRule(String name, EnumSet<ClaimField> fields) {
+        this.name = name;
+        this.fields = fields;
+    }
+}
+
+class DuplicateGroup {
+    String ruleName;
+    List<String> claimIds;
+
+    public DuplicateGroup(String ruleName, List<String> claimIds) {
+        this.ruleName = ruleName;
+        this.claimIds = claimIds;
+    }
+}
+
+// Finds claims with different IDs but matching content by hashing each claim's rule fields into a 64-bit
+// fingerprint. Registered claims are kept in a fingerprint -> IDs map per rule, so checking a new claim is a
+// hash lookup per rule. Fingerprints are not re-verified field by field; a 64-bit collision is negligible here.
+class ClaimDuplicateDetector {
+    private final List<DuplicateRule> rules;
+    private final List<Map<Long, Object>> idsByFingerprint = new ArrayList<>(); // String for one ID, Set for more
+    private final Map<String, long[]> fingerprintsById = new ConcurrentHashMap<>();
+
+    public ClaimDuplicateDetector(List<DuplicateRule> rules) {
+        this.rules = rules;
+        for (int i = 0; i < rules.size(); i++) {
+            idsByFingerprint.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    public static List<DuplicateRule> defaultRules() {
+        List<DuplicateRule> rules = new ArrayList<>();
+        rules.add(new DuplicateRule("Same card, insured person, exam date, documents and amount",
+                EnumSet.of(ClaimField.CARD_NUMBER, ClaimField.INSURED_PERSON, ClaimField.EXAM_DATE,
+                        ClaimField.DOCUMENTS, ClaimField.CLAIM_AMOUNT)));
+        rules.add(new DuplicateRule("Same card, exam date and amount",
+                EnumSet.of(ClaimField.CARD_NUMBER, ClaimField.EXAM_DATE, ClaimField.CLAIM_AMOUNT)));
+        return rules;
+    }
+
+    // IDs of registered claims that match the given claim, keyed by rule name; the claim itself is excluded
+    public Map<String, List<String>> check(Claim claim) {
+        Map<String, List<String>> matches = new LinkedHashMap<>();
+        for (int i = 0; i < rules.size(); i++) {
+            Object ids = idsByFingerprint.get(i).get(fingerprint(rules.get(i), claim));
+            List<String> others = new ArrayList<>();
+            if (ids instanceof String) {
+                others.add((String) ids);
+            } else if (ids != null) {
+                others.addAll(asSet(ids));
+            }
+            others.remove(claim.id);
+            if (!others.isEmpty()) {
+                matches.put(rules.get(i).name, others);
+            }
+        }
+        return matches;
+    }
+
+    // Whether a change to any of these fields can change a claim's fingerprints
+    public boolean usesAny(Set<ClaimField> fields) {
+        for (DuplicateRule rule : rules) {
+            for (ClaimField field : fields) {
+                if (rule.fields.contains(field)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void register(Claim claim) {
+        unregister(claim.id);
+        long[] fingerprints = new long[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            fingerprints[i] = fingerprint(rules.get(i), claim);
+            idsByFingerprint.get(i).compute(fingerprints[i], (key, ids) -> {
+                if (ids == null) {
+                    return claim.id;
+                }
+                Set<String> set = ids instanceof String ? new HashSet<>(Collections.singleton((String) ids)) : asSet(ids);
+                set.add(claim.id);
+                return set;
+            });
+        }
+        fingerprintsById.put(claim.id, fingerprints);
+    }
+
+    public void unregister(String claimId) {
+        long[] fingerprints = fingerprintsById.remove(claimId);
+        if (fingerprints == null) {
+            return;
+        }
+        for (int i = 0; i < rules.size(); i++) {
+            idsByFingerprint.get(i).computeIfPresent(fingerprints[i], (key, ids) -> {
+                if (ids instanceof String) {
+                    return ids.equals(claimId) ? null : ids;
+                }
+                Set<String> set = asSet(ids);
+                set.remove(claimId);
+                return set.size() == 1 ? set.iterator().next() : set;
+            });
+        }
+    }
+
+    // Full pass over any set of claims, grouped by fingerprint in parallel; only groups of two or more are returned.
+    // Rules are applied in order, strictest first, and a group whose claims were all already grouped together by
+    // earlier rules is left out, so exact duplicates are not reported again as suspicious.
+    public List<DuplicateGroup> findDuplicates(Collection<Claim> claims) {
+        List<DuplicateGroup> groups = new ArrayList<>();
+        Map<String, String> groupedWith = new HashMap<>(); // Union-find over claims reported together so far
+        for (DuplicateRule rule : rules) {
+            Map<Long, List<String>> byFingerprint = claims.parallelStream()
+                    .collect(Collectors.groupingByConcurrent(claim -> fingerprint(rule, claim),
+                            Collectors.mapping(claim -> claim.id, Collectors.toList())));
+            List<List<String>> found = new ArrayList<>();
+            for (List<String> ids : byFingerprint.values()) {
+                if (ids.size() > 1 && !alreadyGrouped(groupedWith, ids)) {
+                    Collections.sort(ids);
+                    found.add(ids);
+                }
+            }
+            for (List<String> ids : found) {
+                groups.add(new DuplicateGroup(rule.name, ids));
+                for (String id : ids) {
+                    groupedWith.put(root(groupedWith, id), root(groupedWith, ids.get(0)));
+                }
+            }
+        }
+        return groups;
+    }
+
+    private static boolean alreadyGrouped(Map<String, String> groupedWith, List<String> ids) {
+        String first = root(groupedWith, ids.get(0));
+        for (String id : ids) {
+            if (!root(groupedWith, id).equals(first)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String root(Map<String, String> groupedWith, String id) {
+        String parent;
+        while ((parent = groupedWith.get(id)) != null && !parent.equals(id)) {
+            id = parent;
+        }
+        return id;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> asSet(Object ids) {
+        return (Set<String>) ids;
+    }
+
+    // 64-bit FNV-1a over the rule's field values, with a separator so field boundaries cannot shift
+    private static long fingerprint(DuplicateRule rule, Claim claim) {
+        long hash = 0xcbf29ce484222325L;
+        for (ClaimField field : rule.fields) {
+            String value = field.valueOf(claim);
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= 0x1F;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
+
+interface ClaimProcessManager {
+    void add(Claim claim);
+    void update(Claim claim);
+    // Moves each listed claim still in from to to, checked against the stored claim under the manager's lock.
+    // Returns the moved claims as they were before; missing claims and claims in another status are left alone.
+    List<Claim> transitionStatus(List<String> claimIds, ClaimStatus from, ClaimStatus to);
+    void delete(String claimId);
+    Claim getOne(String claimId);
+    List<Claim> getAll();
+    void forEach(Consumer<Claim> action); // Visits every claim without collecting them into one list
+    List<String> getAllClaimIds(); // New method to retrieve all claim IDs
+    List<String> searchByInsuredPerson(String query, int limit); // Ranked claim IDs for a partial or misspelt name
+    // Range scans in ascending key order; a null bound leaves that side open and both bounds are inclusive
+    Iterator<Claim> getByClaimDate(Date from, Date to);
+    Iterator<Claim> getByExamDate(Date from, Date to);
+    Iterator<Claim> getByClaimAmount(Double min, Double max);
+    List<Claim> query(ClaimQuery query); // Matching claims, sorted and limited as the query asks
+    String explain(ClaimQuery query); // How query would be answered, without running it
+}
+
+class SimpleClaimProcessManager implements ClaimProcessManager {
+    private Map<String, Claim> claims;
+    private NameSearchIndex insuredPersonIndex;
+    private SortedClaimIndex<Long> claimDateIndex;
+    private SortedClaimIndex<Long> examDateIndex;
+    private SortedClaimIndex<Double> claimAmountIndex;
+    private HashClaimIndex statusIndex;
+    private HashClaimIndex cardNumberIndex;
+    private ClaimDuplicateDetector duplicateDetector; // Optional, shared by every manager that feeds it
+
+    public SimpleClaimProcessManager() {
+        this(null);
+    }
+
+    public SimpleClaimProcessManager(ClaimDuplicateDetector duplicateDetector) {
+        this.duplicateDetector = duplicateDetector;
+        claims = new HashMap<>();
+        insuredPersonIndex = new NameSearchIndex();
+        claimDateIndex = new SortedClaimIndex<>(claim -> claim.claimDate == null ? null : claim.claimDate.getTime());
+        examDateIndex = new SortedClaimIndex<>(claim -> claim.examDate == null ? null : claim.examDate.getTime());
+        claimAmountIndex = new SortedClaimIndex<>(claim -> claim.claimAmount);
+        statusIndex = new HashClaimIndex(claim -> claim.status == null ? null : claim.status.toLowerCase());
+        cardNumberIndex = new HashClaimIndex(claim -> claim.cardNumber);
+    }
+
+    @Override
+    public void add(Claim claim) {
+        claims.put(claim.id, claim);
+        indexClaim(claim);
+    }
+    @Override
+    public void update(Claim claim) {
+        Claim previous = claims.get(claim.id);
+        if (previous == null) {
+            return;
+        }
+        claims.put(claim.id, claim);
+        if (previous == claim) {
+            indexClaim(claim); // Edited in place, so there is nothing to compare against
+            return;
+        }
+
+        // Only the indexes whose key changed need work; a status change touches one index
+        EnumSet<ClaimField> changed = EnumSet.noneOf(ClaimField.class);
+        for (ClaimField field : ClaimField.values()) {
+            if (!Objects.equals(field.get(previous), field.get(claim))) {
+                changed.add(field);
+            }
+        }
+        if (changed.contains(ClaimField.INSURED_PERSON)) {
+            insuredPersonIndex.put(claim.id, claim.insuredPerson);
+        }
+        if (changed.contains(ClaimField.CLAIM_DATE)) {
+            claimDateIndex.put(claim);
+        }
+        if (changed.contains(ClaimField.EXAM_DATE)) {
+            examDateIndex.put(claim);
+        }
+        if (changed.contains(ClaimField.CLAIM_AMOUNT)) {
+            claimAmountIndex.put(claim);
+        }
+        if (changed.contains(ClaimField.STATUS)) {
+            statusIndex.put(claim);
+        }
+        if (changed.contains(ClaimField.CARD_NUMBER)) {
+            cardNumberIndex.put(claim);
+        }
+        if (duplicateDetector != null && duplicateDetector.usesAny(changed)) {
+            duplicateDetector.register(claim);
+        }
+    }
+
+    @Override
+    public List<Claim> transitionStatus(List<String> claimIds, ClaimStatus from, ClaimStatus to) {
+        List<Claim> moved = new ArrayList<>();
+        for (String claimId : claimIds) {
+            Claim stored = claims.get(claimId);
+            if (stored != null && ClaimStatus.parse(stored.status) == from) {
+                Claim next = stored.copy();
+                next.status = to.label;
+                update(next);
+                moved.add(stored);
+            }
+        }
+        return moved;
+    }
+
+    private void indexClaim(Claim claim) {
+        insuredPersonIndex.put(claim.id, claim.insuredPerson);
+        claimDateIndex.put(claim);
+        examDateIndex.put(claim);
+        claimAmountIndex.put(claim);
+        statusIndex.put(claim);
+        cardNumberIndex.put(claim);
+        if (duplicateDetector != null) {
+            duplicateDetector.register(claim);
+        }
+    }
+    public List<String> getAllClaimIds() {
+        return new ArrayList<>(claims.keySet());
+    }
+
+    @Override
+    public void forEach(Consumer<Claim> action) {
+        claims.values().forEach(action);
+    }
+
+    @Override
+    public void delete(String claimId) {
+        claims.remove(claimId);
+        insuredPersonIndex.remove(claimId);
+        claimDateIndex.remove(claimId);
+        examDateIndex.remove(claimId);
+        claimAmountIndex.remove(claimId);
+        statusIndex.remove(claimId);
+        cardNumberIndex.remove(claimId);
+        if (duplicateDetector != null) {
+            duplicateDetector.unregister(claimId);
+        }
+    }
+
+    // Takes this manager's claims out of the shared duplicate detector, e.g. when a partition is evicted
+    public void detach() {
+        if (duplicateDetector != null) {
+            for (String claimId : claims.keySet()) {
+                duplicateDetector.unregister(claimId);
+            }
+        }
+    }
+
+    @Override
+    public Claim getOne(String claimId) {
+        return claims.get(claimId);
+    }
+
+    @Override
+    public List<Claim> getAll() {
+        return new ArrayList<>(claims.values());
+    }
+
+    @Override
+    public List<String> searchByInsuredPerson(String query, int limit) {
+        return insuredPersonIndex.search(query, limit);
+    }
+
+    @Override
+    public Iterator<Claim> getByClaimDate(Date from, Date to) {
+        return toClaims(claimDateIndex.range(from == null ? null : from.getTime(), to == null ? null : to.getTime()));
+    }
+
+    @Override
+    public Iterator<Claim> getByExamDate(Date from, Date to) {
+        return toClaims(examDateIndex.range(from == null ? null : from.getTime(), to == null ? null : to.getTime()));
+    }
+
+    @Override
+    public Iterator<Claim> getByClaimAmount(Double min, Double max) {
+        return toClaims(claimAmountIndex.range(min, max));
+    }
+
+    @Override
+    public List<Claim> query(ClaimQuery query) {
+        ClaimQueryPlan plan = plan(query);
+        if (plan.candidateIds == null) {
+            return query.finish(claims.values().parallelStream().filter(query::matches).collect(Collectors.toList()));
+        }
+        List<Claim> matches = new ArrayList<>();
+        while (plan.candidateIds.hasNext()) {
+            Claim claim = claims.get(plan.candidateIds.next());
+            if (claim != null && query.matches(claim)) {
+                matches.add(claim);
+                // Candidates arrive in sort order, so nothing later can rank higher; ties at the limit keep index order
+                if (plan.inSortOrder && matches.size() >= query.limit) {
+                    break;
+                }
+            }
+        }
+        return query.finish(matches);
+    }
+
+    @Override
+    public String explain(ClaimQuery query) {
+        ClaimQueryPlan plan = plan(query);
+        String explanation = plan.description + ", filter: " + query.describeConditions();
+        if (query.sortBy != null) {
+            explanation += plan.inSortOrder ? ", already in " + query.sortBy + " order"
+                    : ", sort by " + query.sortBy + (query.descending ? " desc" : "");
+        }
+        if (query.limit != Integer.MAX_VALUE) {
+            explanation += ", limit " + query.limit;
+        }
+        return explanation;
+    }
+
+    // Picks the index producing the fewest candidate IDs. Range sizes are only counted up to the best estimate
+    // so far. A path producing more than a quarter of all claims loses to a parallel scan of the map.
+    private ClaimQueryPlan plan(ClaimQuery query) {
+        ClaimQueryPlan best = new ClaimQueryPlan("Parallel scan of " + claims.size() + " claims", claims.size(), null, false);
+        if (!query.useIndexes) {
+            best.description += " (indexes disabled)";
+            return best;
+        }
+        long cap = claims.size() / 4;
+        if (query.status != null) {
+            best = cheaper(best, cap, "status", statusIndex.get(query.status.toLowerCase()));
+        }
+        if (query.cardNumber != null) {
+            best = cheaper(best, cap, "cardNumber", cardNumberIndex.get(query.cardNumber));
+        }
+        if (query.insuredPerson != null) {
+            best = cheaper(best, cap, "insuredPerson", insuredPersonIndex.idsWithName(query.insuredPerson));
+        }
+        if (query.hasClaimDateRange()) {
+            best = cheaper(best, cap, query, ClaimField.CLAIM_DATE, claimDateIndex,
+                    query.claimDateFrom == null ? null : query.claimDateFrom.getTime(),
+                    query.claimDateTo == null ? null : query.claimDateTo.getTime());
+        }
+        if (query.hasExamDateRange()) {
+            best = cheaper(best, cap, query, ClaimField.EXAM_DATE, examDateIndex,
+                    query.examDateFrom == null ? null : query.examDateFrom.getTime(),
+                    query.examDateTo == null ? null : query.examDateTo.getTime());
+        }
+        if (query.hasAmountRange()) {
+            best = cheaper(best, cap, query, ClaimField.CLAIM_AMOUNT, claimAmountIndex, query.minAmount, query.maxAmount);
+        }
+        return best;
+    }
+
+    private static ClaimQueryPlan cheaper(ClaimQueryPlan best, long cap, String field, Set<String> ids) {
+        if (ids.size() > cap || ids.size() >= best.estimatedRows) {
+            return best;
+        }
+        return new ClaimQueryPlan("Index lookup on " + field + " (" + ids.size() + " candidates)", ids.size(),
+                ids.iterator(), false);
+    }
+
+    private static <K extends Comparable<K>> ClaimQueryPlan cheaper(ClaimQueryPlan best, long cap, ClaimQuery query,
+                                                                    ClaimField field, SortedClaimIndex<K> index,
+                                                                    K from, K to) {
+        long count = index.countUpTo(from, to, Math.min(cap, best.estimatedRows));
+        if (count > cap || count >= best.estimatedRows) {
+            return best;
+        }
+        return new ClaimQueryPlan("Range scan on " + field + " (" + count + " candidates)", count,
+                index.range(from, to), query.sortBy == field && !query.descending);
+    }
+
+    // Looks each ID up only when the caller asks for the next claim, skipping claims deleted mid-scan
+    private Iterator<Claim> toClaims(Iterator<String> ids) {
+        Iterable<String> iterable = () -> ids;
+        return StreamSupport.stream(iterable.spliterator(), false)
+                .map(claims::get)
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+}
+
+// Parses one split line of a data file; throw to reject the row with the exception message as reason
+interface RowParser<T> {
+    T parse(String[] parts) throws Exception;
+}
+
+// Checks a parsed row against rows already loaded; return a reason to reject it, or null to keep it
+interface RowFilter<T> {
+    String check(T row);
+}
+
+class LoadReport {
+    String filePath;
+    String rejectsPath;
+    long rowsRead;
+    long rowsLoaded;
+    long rowsRejected;
+
+    public LoadReport(String filePath) {
+        this.filePath = filePath;
+        this.rejectsPath = filePath + ".rejects";
+    }
+
+    @Override
+    public String toString() {
+        String summary = "Loaded " + rowsLoaded + " of " + rowsRead + " rows from " + filePath;
+        if (rowsRejected > 0) {
+            summary += " (" + rowsRejected + " rejected, see " + rejectsPath + ")";
+        }
+        return summary;
+    }
+}
+
+class FileManager {
+    // SimpleDateFormat is not thread safe, so every parsing worker gets its own copy
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd"));
+    private static final int BATCH_SIZE = 10000;
+
+    public static List<Customer> loadCustomers(String filePath) {
+        List<Customer> customers = new ArrayList<>();
+        LoadReport report = loadRows(filePath, 4, parts -> {
+            String id = parts[0];
+            String fullName = parts[1];
+            String role = parts[2]; // Assuming role is the third field in the file
+            String cardNumber = parts[3]; // Assuming card number is the fourth field in the file
+
+            // Create a new Customer object with insurance card information
+            Customer customer = new Customer(id, fullName);
+            customer.setRole(role);
+
+            // Create an InsuranceCard object with card number and set it to the customer
+            InsuranceCard insuranceCard = new InsuranceCard(cardNumber, "", "", null);
+            customer.setInsuranceCard(insuranceCard);
+            return customer;
+        }, customer -> null, customers::add);
+        System.out.println(report);
+        return customers;
+    }
+
+    // Links policy holders to dependents already in the graph; links to unknown customers are rejected
+    public static void loadDependents(String filePath, CustomerGraph graph) {
+        LoadReport report = loadRows(filePath, 2, parts -> new String[]{parts[0], parts[1]},
+                link -> graph.containsCustomer(link[0]) && graph.containsCustomer(link[1]) ? null
+                        : "Unknown customer in link " + link[0] + " -> " + link[1],
+                link -> graph.link(link[0], link[1]));
+        System.out.println(report);
+    }
+
+    public static List<Claim> loadClaims(String filePath) {
+        List<Claim> claims = new ArrayList<>();
+        System.out.println(loadClaims(filePath, claims::add));
+        return claims;
+    }
+
+    // Streams every valid claim into the sink as soon as its batch is validated
+    public static LoadReport loadClaims(String filePath, Consumer<Claim> sink) {
+        Set<String> existingIds = new HashSet<>(); // To track existing claim IDs
+        return loadRows(filePath, 9, parts -> {
+            String id = parts[0];
+            Date claimDate = parts[1].isEmpty() ? null : DATE_FORMAT.get().parse(parts[1]);
+            String insuredPerson = parts[2];
+            String cardNumber = parts[3];
+            Date examDate = parts[4].isEmpty() ? null : DATE_FORMAT.get().parse(parts[4]);
+            // Parse documents
+            List<String> documents = Arrays.asList(parts[5].split(";"));
+            double claimAmount = Double.parseDouble(parts[6]);
+            String status = parts[7];
+            String receiverBankingInfo = parts[8];
+            return new Claim(id, claimDate, insuredPerson, cardNumber, examDate,
+                    documents, claimAmount, status, receiverBankingInfo);
+        }, claim -> existingIds.add(claim.id) ? null : "Duplicate claim ID " + claim.id, sink);
+    }
+
+
+    public static List<InsuranceCard> loadInsuranceCards(String filePath) {
+        List<InsuranceCard> cards = new ArrayList<>();
+        LoadReport report = loadRows(filePath, 4, parts -> {
+            String cardNumber = parts[0];
+
+            // Validate card number to contain only numbers
+            if (!cardNumber.matches("\\d+")) {
+                throw new IllegalArgumentException("Invalid card number " + cardNumber + ", only numbers are allowed");
+            }
+
+            String cardHolder = parts[1];
+            String policyOwner = parts[2];
+            Date expirationDate = DATE_FORMAT.get().parse(parts[3]);
+            return new InsuranceCard(cardNumber, cardHolder, policyOwner, expirationDate);
+        }, card -> null, cards::add);
+        System.out.println(report);
+        return cards;
+    }
+
+    // Reads the file in batches and parses each batch on the common pool while the next one is read.
+    // Bad rows are written to <filePath>.rejects with their line number and reason instead of stopping the load.
+    private static <T> LoadReport loadRows(String filePath, int fieldCount, RowParser<T> parser,
+                                           RowFilter<T> filter, Consumer<T> sink) {
+        LoadReport report = new LoadReport(filePath);
+        new File(report.rejectsPath).delete(); // Drop the report from a previous load
+        BufferedWriter rejects = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            CompletableFuture<List<Object>> pending = null;
+            long pendingFirstLine = 0;
+            List<String> pendingLines = null;
+            long lineNumber = 0;
+            while (true) {
+                List<String> lines = new ArrayList<>(BATCH_SIZE);
+                long firstLine = lineNumber + 1;
+                String line;
+                while (lines.size() < BATCH_SIZE && (line = reader.readLine()) != null) {
+                    lines.add(line);
+                    lineNumber++;
+                }
+
+                // Commit the previous batch in file order while this one is parsed
+                CompletableFuture<List<Object>> next = lines.isEmpty() ? null
+                        : CompletableFuture.supplyAsync(() -> parseBatch(lines, fieldCount, parser));
+                if (pending != null) {
+                    rejects = commitBatch(pending.join(), pendingLines, pendingFirstLine, filter, sink, report, rejects);
+                }
+                if (next == null) {
+                    break;
+                }
+                pending = next;
+                pendingLines = lines;
+                pendingFirstLine = firstLine;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (rejects != null) {
+                try {
+                    rejects.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return report;
+    }
+
+    // Each entry is either the parsed row or a RowRejection describing why it failed
+    private static <T> List<Object> parseBatch(List<String> lines, int fieldCount, RowParser<T> parser) {
+        Object[] results = new Object[lines.size()];
+        IntStream.range(0, lines.size()).parallel().forEach(i -> {
+            String line = lines.get(i);
+            if (line.trim().isEmpty()) {
+                results[i] = null; // Blank lines are skipped silently
+                return;
+            }
+            String[] parts = line.split(",", -1);
+            if (parts.length < fieldCount) {
+                results[i] = new RowRejection("Expected " + fieldCount + " fields but found " + parts.length);
+                return;
+            }
+            try {
+                results[i] = parser.parse(parts);
+            } catch (Exception e) {
+                results[i] = new RowRejection(e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        });
+        return Arrays.asList(results);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> BufferedWriter commitBatch(List<Object> results, List<String> lines, long firstLine,
+                                                  RowFilter<T> filter, Consumer<T> sink, LoadReport report,
+                                                  BufferedWriter rejects) throws IOException {
+        for (int i = 0; i < results.size(); i++) {
+            Object result = results.get(i);
+            if (result == null) {
+                continue;
+            }
+            report.rowsRead++;
+            String reason = result instanceof RowRejection ? ((RowRejection) result).reason : filter.check((T) result);
+            if (reason == null) {
+                sink.accept((T) result);
+                report.rowsLoaded++;
+                continue;
+            }
+            if (rejects == null) {
+                rejects = new BufferedWriter(new FileWriter(report.rejectsPath));
+            }
+            rejects.write("line " + (firstLine + i) + ": " + reason + ": " + lines.get(i));
+            rejects.newLine();
+            report.rowsRejected++;
+        }
+        return rejects;
+    }
+
+    private static class RowRejection {
+        final String reason;
+
+        RowRejection(String reason) {
+            this.reason = reason;
+        }
+    }
+
+
+    public static void saveCustomers(Collection<Customer> customers, String filePath) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
+            for (Customer customer : customers) {
+                // Format: id,fullName,role,cardNumber
+                String customerData = String.format("%s,%s,%s,%s",
+                        customer.getId(), customer.getFullName(), customer.getRole(), customer.getInsuranceCard().getCardNumber());
+                writer.write(customerData);
+                writer.newLine();
+            }
+            System.out.println("Customers saved to file successfully.");
+        } catch (IOException e) {
+            System.out.println("Error saving customers to file: " + e.getMessage());
+        }
+    }
+
+    public static void saveDependents(Collection<Customer> customers, String filePath) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
+            for (Customer customer : customers) {
+                // Format: policyHolderId,dependentId
+                for (Customer dependent : customer.getDependents()) {
+                    writer.write(customer.getId() + "," + dependent.getId());
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void saveClaims(List<Claim> claims, String filePath) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
+            for (Claim claim : claims) {
+                writer.write(formatClaim(claim));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // One line of claims.txt, in the field order loadClaims expects
+    public static String formatClaim(Claim claim) {
+        String claimDateStr = claim.claimDate != null ? DATE_FORMAT.get().format(claim.claimDate) : "";
+        String examDateStr = claim.examDate != null ? DATE_FORMAT.get().format(claim.examDate) : "";
+        String documents = claim.documents != null ? String.join(";", claim.documents) : "";
+        return claim.id + "," + claimDateStr + "," + claim.insuredPerson +
+                "," + claim.cardNumber + "," + examDateStr + "," + documents +
+                "," + claim.claimAmount + "," + claim.status + "," + claim.receiverBankingInfo;
+    }
+
+    public static void saveInsuranceCards(Collection<InsuranceCard> cards, String filePath) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
+            for (InsuranceCard card : cards) {
+                writer.write(card.cardNumber + "," + card.cardHolder + "," + card.policyOwner + "," +
+                        DATE_FORMAT.get().format(card.expirationDate));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+}
+
+// Bloom filter over the claim IDs of one partition, so lookups only load partitions that may hold the ID.
+// Also used over card numbers, so card lookups can skip partitions and the archive.
+class ClaimIdFilter {
+    private static final int HASH_COUNT = 7;
+    private final long[] bits;
+
+    public ClaimIdFilter(int expectedIds) {
+        int bitCount = Math.max(1024, expectedIds * 10);
+        bits = new long[(bitCount + 63) / 64];
+    }
+
+    private ClaimIdFilter(long[] bits) {
+        this.bits = bits;
+    }
+
+    public void add(String id) {
+        long hash = hash(id);
+        int bitCount = bits.length * 64;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = Math.floorMod((int) hash + i * (int) (hash >>> 32), bitCount);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(String id) {
+        long hash = hash(id);
+        int bitCount = bits.length * 64;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = Math.floorMod((int) hash + i * (int) (hash >>> 32), bitCount);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeTo(String filePath) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)))) {
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    public static ClaimIdFilter readFrom(String filePath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
+            long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new ClaimIdFilter(bits);
+        }
+    }
+
+    // 64-bit FNV-1a, split into two 32-bit halves for double hashing
+    private static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
+
+// One month of claims on disk. The claims are only held in memory while the partition is loaded.
+class ClaimPartition {
+    String key;
+    String fileName;
+    int rowCount;
+    ClaimIdFilter ids; // null when the filter file is missing, which makes every lookup load the partition
+    ClaimIdFilter cards; // Card numbers of the partition's claims; null when missing, like ids
+    SimpleClaimProcessManager claims; // null while evicted
+    boolean dirty;
+    long lastAccess;
+    // Exam date and amount ranges of the partition's claims, so range scans can skip it unread. Exact when written,
+    // only widened by later changes; unknown (summarized false) for manifests written before they were recorded.
+    boolean summarized;
+    long minExamDate = Long.MAX_VALUE;
+    long maxExamDate = Long.MIN_VALUE;
+    double minAmount = Double.POSITIVE_INFINITY;
+    double maxAmount = Double.NEGATIVE_INFINITY;
+
+    public ClaimPartition(String key, String fileName, int rowCount) {
+        this.key = key;
+        this.fileName = fileName;
+        this.rowCount = rowCount;
+    }
+
+    public boolean mightContain(String claimId) {
+        return ids == null || ids.mightContain(claimId);
+    }
+
+    public boolean mightHaveCard(String cardNumber) {
+        return cards == null || cards.mightContain(cardNumber);
+    }
+
+    public void indexCards(Collection<Claim> claims) {
+        cards = new ClaimIdFilter(claims.size());
+        for (Claim claim : claims) {
+            addCard(claim);
+        }
+    }
+
+    public void addCard(Claim claim) {
+        if (claim.cardNumber != null) {
+            cards.add(claim.cardNumber);
+        }
+    }
+
+    public void include(Claim claim) {
+        if (claim.examDate != null) {
+            minExamDate = Math.min(minExamDate, claim.examDate.getTime());
+            maxExamDate = Math.max(maxExamDate, claim.examDate.getTime());
+        }
+        minAmount = Math.min(minAmount, claim.claimAmount);
+        maxAmount = Math.max(maxAmount, claim.claimAmount);
+    }
+
+    public void summarize(Collection<Claim> claims) {
+        minExamDate = Long.MAX_VALUE;
+        maxExamDate = Long.MIN_VALUE;
+        minAmount = Double.POSITIVE_INFINITY;
+        maxAmount = Double.NEGATIVE_INFINITY;
+        for (Claim claim : claims) {
+            include(claim);
+        }
+        summarized = true;
+    }
+
+    public boolean mightHaveExamDate(Date from, Date to) {
+        return !summarized || ((from == null || maxExamDate >= from.getTime()) && (to == null || minExamDate <= to.getTime()));
+    }
+
+    public boolean mightHaveAmount(Double min, Double max) {
+        return !summarized || ((min == null || maxAmount >= min) && (max == null || minAmount <= max));
+    }
+}
+
+// Claims split by claimDate month into one file per partition, listed in a manifest. Partitions are read the
+// first time a query needs them, and the least recently used or idle ones are written back and dropped from memory,
+// so memory follows the months being worked on rather than the whole history.
+class PartitionedClaimProcessManager implements ClaimProcessManager {
+    private static final String MANIFEST = "manifest.txt";
+    private static final String UNDATED = "undated";
+    private static final ThreadLocal<SimpleDateFormat> MONTH_FORMAT =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM"));
+
+    private final String directory;
+    private final int maxLoadedPartitions;
+    private final long idleMillis;
+    private final TreeMap<String, ClaimPartition> partitions = new TreeMap<>();
+    private final ClaimDuplicateDetector duplicateDetector; // Holds the claims of loaded partitions, may be null
+
+    public PartitionedClaimProcessManager(String directory, int maxLoadedPartitions, long idleMillis,
+                                          ClaimDuplicateDetector duplicateDetector) {
+        this.directory = directory;
+        this.duplicateDetector = duplicateDetector;
+        this.maxLoadedPartitions = maxLoadedPartitions;
+        this.idleMillis = idleMillis;
+        new File(directory).mkdirs();
+        readManifest();
+    }
+
+    public synchronized boolean isEmpty() {
+        return partitions.isEmpty();
+    }
+
+    // One-off split of a flat claims file into monthly partitions, streamed so the file never has to fit in memory
+    public synchronized void importClaims(String flatFilePath) {
+        Map<String, BufferedWriter> writers = new HashMap<>();
+        Map<String, Set<String>> cardsByKey = new HashMap<>();
+        try {
+            LoadReport report = FileManager.loadClaims(flatFilePath, claim -> {
+                String key = partitionKey(claim);
+                try {
+                    BufferedWriter writer = writers.get(key);
+                    if (writer == null) {
+                        writer = new BufferedWriter(new FileWriter(path(fileName(key))));
+                        writers.put(key, writer);
+                        ClaimPartition partition = new ClaimPartition(key, fileName(key), 0);
+                        partition.summarized = true;
+                        partitions.put(key, partition);
+                    }
+                    writer.write(FileManager.formatClaim(claim));
+                    writer.newLine();
+                    partitions.get(key).rowCount++;
+                    partitions.get(key).include(claim);
+                    if (claim.cardNumber != null) {
+                        cardsByKey.computeIfAbsent(key, k -> new HashSet<>()).add(claim.cardNumber);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            System.out.println(report);
+        } finally {
+            for (BufferedWriter writer : writers.values()) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        for (ClaimPartition partition : partitions.values()) {
+            partition.ids = new ClaimIdFilter(partition.rowCount);
+            try (BufferedReader reader = new BufferedReader(new FileReader(path(partition.fileName)))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    partition.ids.add(line.substring(0, line.indexOf(',')));
+                }
+                partition.ids.writeTo(path(partition.fileName + ".ids"));
+                Set<String> cards = cardsByKey.getOrDefault(partition.key, Collections.emptySet());
+                partition.cards = new ClaimIdFilter(cards.size());
+                for (String cardNumber : cards) {
+                    partition.cards.add(cardNumber);
+                }
+                partition.cards.writeTo(path(partition.fileName + ".cards"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        writeManifest();
+    }
+
+    // Loads the newest partitions in parallel, since nearly all work touches recent months
+    public synchronized void preloadRecent(int count) {
+        List<ClaimPartition> recent = new ArrayList<>();
+        for (ClaimPartition partition : partitions.descendingMap().values()) {
+            if (recent.size() == Math.min(count, maxLoadedPartitions)) {
+                break;
+            }
+            if (!partition.key.equals(UNDATED)) {
+                recent.add(partition);
+            }
+        }
+        loadInParallel(recent);
+    }
+
+    public synchronized int loadedPartitionCount() {
+        int count = 0;
+        for (ClaimPartition partition : partitions.values()) {
+            if (partition.claims != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Writes every changed partition and the manifest
+    public synchronized void save() {
+        for (ClaimPartition partition : new ArrayList<>(partitions.values())) {
+            if (partition.dirty) {
+                flush(partition);
+            }
+        }
+        writeManifest();
+    }
+
+    // A claim leaves its old month before the new month is loaded, since loading it may evict the old one
+    @Override
+    public synchronized void add(Claim claim) {
+        ClaimPartition existing = locate(claim.id);
+        if (existing != null && !existing.key.equals(partitionKey(claim))) {
+            existing.claims.delete(claim.id);
+            existing.dirty = true;
+        }
+        ClaimPartition target = partitionFor(claim);
+        target.claims.add(claim);
+        target.ids.add(claim.id);
+        target.addCard(claim);
+        target.include(claim);
+        target.dirty = true;
+    }
+
+    @Override
+    public synchronized void update(Claim claim) {
+        ClaimPartition existing = locate(claim.id);
+        if (existing == null) {
+            return;
+        }
+        existing.dirty = true;
+        if (existing.key.equals(partitionKey(claim))) {
+            existing.claims.update(claim);
+            existing.include(claim);
+            if (existing.cards != null) {
+                existing.addCard(claim);
+            }
+            return;
+        }
+        // A changed claim date moves the claim to another month
+        existing.claims.delete(claim.id);
+        ClaimPartition target = partitionFor(claim);
+        target.claims.add(claim);
+        target.ids.add(claim.id);
+        target.addCard(claim);
+        target.include(claim);
+        target.dirty = true;
+    }
+
+    @Override
+    public synchronized List<Claim> transitionStatus(List<String> claimIds, ClaimStatus from, ClaimStatus to) {
+        List<Claim> moved = new ArrayList<>();
+        for (String claimId : claimIds) {
+            ClaimPartition partition = locate(claimId);
+            if (partition != null) {
+                // A status change keeps the claim in its partition
+                List<Claim> before = partition.claims.transitionStatus(Collections.singletonList(claimId), from, to);
+                if (!before.isEmpty()) {
+                    partition.dirty = true;
+                    moved.addAll(before);
+                }
+            }
+        }
+        return moved;
+    }
+
+    @Override
+    public synchronized void delete(String claimId) {
+        ClaimPartition partition = locate(claimId);
+        if (partition != null) {
+            partition.claims.delete(claimId);
+            partition.dirty = true;
+        }
+    }
+
+    @Override
+    public synchronized Claim getOne(String claimId) {
+        ClaimPartition partition = locate(claimId);
+        return partition == null ? null : partition.claims.getOne(claimId);
+    }
+
+    // Needs every partition, so these read the whole history, though without keeping it loaded
+    @Override
+    public synchronized List<Claim> getAll() {
+        List<Claim> all = new ArrayList<>();
+        forEach(all::add);
+        return all;
+    }
+
+    // One month at a time; months that are not loaded are streamed from their files and not kept
+    @Override
+    public synchronized void forEach(Consumer<Claim> action) {
+        for (ClaimPartition partition : new ArrayList<>(partitions.values())) {
+            if (partition.claims != null) {
+                partition.claims.forEach(action);
+            } else {
+                LoadReport report = FileManager.loadClaims(path(partition.fileName), action);
+                if (report.rowsRejected > 0) {
+                    System.out.println(report);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<String> getAllClaimIds() {
+        List<String> ids = new ArrayList<>();
+        forEach(claim -> ids.add(claim.id));
+        return ids;
+    }
+
+    // Newest months are searched first and ranking is kept within each month
+    @Override
+    public synchronized List<String> searchByInsuredPerson(String query, int limit) {
+        List<String> ids = new ArrayList<>();
+        for (ClaimPartition partition : new ArrayList<>(partitions.descendingMap().values())) {
+            if (ids.size() >= limit) {
+                break;
+            }
+            ids.addAll(loaded(partition).searchByInsuredPerson(query, limit - ids.size()));
+        }
+        return ids;
+    }
+
+    // Only the months between from and to are read, one at a time as the iterator reaches them
+    @Override
+    public synchronized Iterator<Claim> getByClaimDate(Date from, Date to) {
+        Iterator<ClaimPartition> remaining = monthsBetween(from, to).iterator();
+        return new Iterator<Claim>() {
+            private Iterator<Claim> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && remaining.hasNext()) {
+                    ClaimPartition partition = remaining.next();
+                    synchronized (PartitionedClaimProcessManager.this) {
+                        current = loaded(partition).getByClaimDate(from, to);
+                    }
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Claim next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    // Only partitions whose recorded range overlaps the bounds are read
+    @Override
+    public synchronized Iterator<Claim> getByExamDate(Date from, Date to) {
+        List<Iterator<Claim>> ranges = new ArrayList<>();
+        for (SimpleClaimProcessManager claims : loadAll(partitionsWhere(partition -> partition.mightHaveExamDate(from, to)))) {
+            ranges.add(claims.getByExamDate(from, to));
+        }
+        return mergeSorted(ranges, Comparator.comparing(claim -> claim.examDate));
+    }
+
+    @Override
+    public synchronized Iterator<Claim> getByClaimAmount(Double min, Double max) {
+        List<Iterator<Claim>> ranges = new ArrayList<>();
+        for (SimpleClaimProcessManager claims : loadAll(partitionsWhere(partition -> partition.mightHaveAmount(min, max)))) {
+            ranges.add(claims.getByClaimAmount(min, max));
+        }
+        return mergeSorted(ranges, Comparator.comparingDouble(claim -> claim.claimAmount));
+    }
+
+    // Each partition that can hold a match answers the query with its own indexes, then the results are merged
+    @Override
+    public synchronized List<Claim> query(ClaimQuery query) {
+        List<Claim> matches = new ArrayList<>();
+        for (ClaimPartition partition : candidatePartitions(query)) {
+            matches.addAll(loaded(partition).query(query));
+        }
+        return query.finish(matches);
+    }
+
+    @Override
+    public synchronized String explain(ClaimQuery query) {
+        List<ClaimPartition> candidates = candidatePartitions(query);
+        String explanation = "Read " + candidates.size() + " of " + partitions.size() + " monthly partitions";
+        if (!candidates.isEmpty()) {
+            explanation += "; in " + candidates.get(candidates.size() - 1).key + ": "
+                    + loaded(candidates.get(candidates.size() - 1)).explain(query);
+        }
+        return explanation;
+    }
+
+    // A claim date range rules out whole months, and exam date and amount ranges and card numbers rule out months
+    // whose recorded ranges or card filter miss them, all without reading them
+    private List<ClaimPartition> candidatePartitions(ClaimQuery query) {
+        List<ClaimPartition> candidates = query.hasClaimDateRange()
+                ? monthsBetween(query.claimDateFrom, query.claimDateTo) : new ArrayList<>(partitions.values());
+        candidates.removeIf(partition -> !partition.mightHaveExamDate(query.examDateFrom, query.examDateTo)
+                || !partition.mightHaveAmount(query.minAmount, query.maxAmount)
+                || (query.cardNumber != null && !partition.mightHaveCard(query.cardNumber)));
+        return candidates;
+    }
+
+    private List<ClaimPartition> partitionsWhere(Predicate<ClaimPartition> condition) {
+        List<ClaimPartition> matching = new ArrayList<>();
+        for (ClaimPartition partition : partitions.values()) {
+            if (condition.test(partition)) {
+                matching.add(partition);
+            }
+        }
+        return matching;
+    }
+
+    private List<ClaimPartition> monthsBetween(Date from, Date to) {
+        String fromKey = from == null ? null : MONTH_FORMAT.get().format(from);
+        String toKey = to == null ? null : MONTH_FORMAT.get().format(to);
+        List<ClaimPartition> months = new ArrayList<>();
+        for (ClaimPartition partition : partitions.values()) {
+            if (!partition.key.equals(UNDATED)
+                    && (fromKey == null || partition.key.compareTo(fromKey) >= 0)
+                    && (toKey == null || partition.key.compareTo(toKey) <= 0)) {
+                months.add(partition);
+            }
+        }
+        return months;
+    }
+
+    // Lazy k-way merge of per-partition (or per-shard) range scans that are each already in key order
+    static Iterator<Claim> mergeSorted(List<Iterator<Claim>> ranges, Comparator<Claim> order) {
+        PriorityQueue<Map.Entry<Claim, Iterator<Claim>>> heads =
+                new PriorityQueue<>((a, b) -> order.compare(a.getKey(), b.getKey()));
+        for (Iterator<Claim> range : ranges) {
+            if (range.hasNext()) {
+                heads.add(new AbstractMap.SimpleEntry<>(range.next(), range));
+            }
+        }
+        return new Iterator<Claim>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Claim next() {
+                Map.Entry<Claim, Iterator<Claim>> head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                if (head.getValue().hasNext()) {
+                    heads.add(new AbstractMap.SimpleEntry<>(head.getValue().next(), head.getValue()));
+                }
+                return head.getKey();
+            }
+        };
+    }
+
+    // Loaded partitions are checked first, then evicted ones whose ID filter may hold the claim, newest first
+    private ClaimPartition locate(String claimId) {
+        for (ClaimPartition partition : partitions.values()) {
+            if (partition.claims != null && partition.claims.getOne(claimId) != null) {
+                partition.lastAccess = System.currentTimeMillis();
+                return partition;
+            }
+        }
+        for (ClaimPartition partition : new ArrayList<>(partitions.descendingMap().values())) {
+            if (partition.claims == null && partition.mightContain(claimId)
+                    && loaded(partition).getOne(claimId) != null) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    private ClaimPartition partitionFor(Claim claim) {
+        String key = partitionKey(claim);
+        ClaimPartition partition = partitions.get(key);
+        if (partition == null) {
+            partition = new ClaimPartition(key, fileName(key), 0);
+            partition.ids = new ClaimIdFilter(1024);
+            partition.claims = new SimpleClaimProcessManager(duplicateDetector);
+            partition.cards = new ClaimIdFilter(1024);
+            partition.summarized = true;
+            partitions.put(key, partition);
+        }
+        loaded(partition);
+        if (partition.ids == null) {
+            partition.ids = new ClaimIdFilter(partition.rowCount);
+            for (String id : partition.claims.getAllClaimIds()) {
+                partition.ids.add(id);
+            }
+        }
+        if (partition.cards == null) {
+            partition.indexCards(partition.claims.getAll());
+        }
+        return partition;
+    }
+
+    private SimpleClaimProcessManager loaded(ClaimPartition partition) {
+        if (partition.claims == null) {
+            partition.claims = readPartition(partition);
+        }
+        partition.lastAccess = System.currentTimeMillis();
+        evict(partition);
+        return partition.claims;
+    }
+
+    private List<SimpleClaimProcessManager> loadAll(List<ClaimPartition> toLoad) {
+        loadInParallel(toLoad);
+        List<SimpleClaimProcessManager> loaded = new ArrayList<>();
+        for (ClaimPartition partition : toLoad) {
+            loaded.add(partition.claims);
+        }
+        evict(null);
+        return loaded;
+    }
+
+    private void loadInParallel(List<ClaimPartition> toLoad) {
+        toLoad.parallelStream()
+                .filter(partition -> partition.claims == null)
+                .forEach(partition -> partition.claims = readPartition(partition));
+        long now = System.currentTimeMillis();
+        for (ClaimPartition partition : toLoad) {
+            partition.lastAccess = now;
+        }
+    }
+
+    private SimpleClaimProcessManager readPartition(ClaimPartition partition) {
+        SimpleClaimProcessManager claims = new SimpleClaimProcessManager(duplicateDetector);
+        LoadReport report = FileManager.loadClaims(path(partition.fileName), claims::add);
+        if (report.rowsRejected > 0) {
+            System.out.println(report);
+        }
+        if (!partition.summarized) {
+            partition.summarize(claims.getAll()); // Written with the manifest next time it is saved
+        }
+        if (partition.cards == null) {
+            partition.indexCards(claims.getAll()); // Written with the partition next time it is saved
+        }
+        return claims;
+    }
+
+    // Drops partitions idle for longer than idleMillis, then the least recently used ones over the limit
+    private void evict(ClaimPartition keep) {
+        long now = System.currentTimeMillis();
+        List<ClaimPartition> loaded = new ArrayList<>();
+        List<ClaimPartition> idle = new ArrayList<>();
+        for (ClaimPartition partition : partitions.values()) {
+            if (partition.claims != null && partition != keep) {
+                if (now - partition.lastAccess > idleMillis) {
+                    idle.add(partition);
+                } else {
+                    loaded.add(partition);
+                }
+            }
+        }
+        for (ClaimPartition partition : idle) {
+            unload(partition);
+        }
+        loaded.sort(Comparator.comparingLong(partition -> partition.lastAccess));
+        int excess = loaded.size() + (keep != null && keep.claims != null ? 1 : 0) - maxLoadedPartitions;
+        for (int i = 0; i < excess && i < loaded.size(); i++) {
+            unload(loaded.get(i));
+        }
+    }
+
+    private void unload(ClaimPartition partition) {
+        if (partition.dirty) {
+            flush(partition);
+            writeManifest();
+        }
+        partition.claims.detach();
+        partition.claims = null;
+    }
+
+    private void flush(ClaimPartition partition) {
+        List<Claim> claims = partition.claims.getAll();
+        if (claims.isEmpty()) {
+            // Nothing left in this month, so drop its files
+            new File(path(partition.fileName)).delete();
+            new File(path(partition.fileName + ".ids")).delete();
+            new File(path(partition.fileName + ".cards")).delete();
+            partitions.remove(partition.key);
+            partition.dirty = false;
+            return;
+        }
+        FileManager.saveClaims(claims, path(partition.fileName));
+        partition.summarize(claims); // Tightens ranges widened by changes since the last write
+        // Rebuild the filter so deleted IDs stop causing loads
+        partition.ids = new ClaimIdFilter(claims.size());
+        for (Claim claim : claims) {
+            partition.ids.add(claim.id);
+        }
+        partition.indexCards(claims);
+        try {
+            partition.ids.writeTo(path(partition.fileName + ".ids"));
+            partition.cards.writeTo(path(partition.fileName + ".cards"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        partition.rowCount = claims.size();
+        partition.dirty = false;
+    }
+
+    // Format: key,fileName,rowCount[,minExamDate,maxExamDate,minAmount,maxAmount]
+    private void readManifest() {
+        File manifest = new File(path(MANIFEST));
+        if (!manifest.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length < 3) {
+                    continue;
+                }
+                ClaimPartition partition = new ClaimPartition(parts[0], parts[1], Integer.parseInt(parts[2]));
+                if (parts.length >= 7) {
+                    partition.minExamDate = Long.parseLong(parts[3]);
+                    partition.maxExamDate = Long.parseLong(parts[4]);
+                    partition.minAmount = Double.parseDouble(parts[5]);
+                    partition.maxAmount = Double.parseDouble(parts[6]);
+                    partition.summarized = true;
+                }
+                File ids = new File(path(partition.fileName + ".ids"));
+                if (ids.exists()) {
+                    partition.ids = ClaimIdFilter.readFrom(ids.getPath());
+                }
+                File cards = new File(path(partition.fileName + ".cards"));
+                if (cards.exists()) {
+                    partition.cards = ClaimIdFilter.readFrom(cards.getPath());
+                }
+                partitions.put(partition.key, partition);
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeManifest() {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path(MANIFEST)))) {
+            for (ClaimPartition partition : partitions.values()) {
+                writer.write(partition.key + "," + partition.fileName + "," + partition.rowCount);
+                if (partition.summarized) {
+                    writer.write("," + partition.minExamDate + "," + partition.maxExamDate + "," + partition.minAmount
+                            + "," + partition.maxAmount);
+                }
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String partitionKey(Claim claim) {
+        return claim.claimDate == null ? UNDATED : MONTH_FORMAT.get().format(claim.claimDate);
+    }
+
+    private static String fileName(String key) {
+        return "claims-" + key + ".txt";
+    }
+
+    private String path(String fileName) {
+        return new File(directory, fileName).getPath();
+    }
+}
+
+// Sorted file of (key, record offset) pairs for one claim field of a ClaimArchive, so a key range is found by binary
+// search and read in key order without loading the archive. Entries are 16 bytes; dates are keyed by their time
+// and amounts by sortableKey. Entries of removed records stay until the archive is rebuilt, so readers check every
+// record they reach through it.
+class ArchiveKeyIndex {
+    static final int ENTRY_BYTES = 16;
+
+    private final File file;
+    private FileChannel channel;
+    private long entryCount;
+
+    public ArchiveKeyIndex(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    // Orders doubles like Double.compare, with -0.0 taken as 0.0 so it sorts with the claims it equals
+    static long sortableKey(double value) {
+        long bits = Double.doubleToLongBits(value + 0.0);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+    }
+
+    public long size() {
+        return entryCount;
+    }
+
+    // Position of the first entry whose key is at least key
+    public long lowerBound(long key) throws IOException {
+        ByteBuffer entryKey = ByteBuffer.allocate(8);
+        long low = 0;
+        long high = entryCount;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            entryKey.clear();
+            channel.read(entryKey, middle * ENTRY_BYTES);
+            if (entryKey.getLong(0) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Fills block with whole entries from position on; returns how many were read
+    public int read(long position, ByteBuffer block) throws IOException {
+        block.clear();
+        block.limit((int) Math.min(block.capacity(), (entryCount - position) * ENTRY_BYTES));
+        while (block.hasRemaining()) {
+            if (channel.read(block, position * ENTRY_BYTES + block.position()) < 0) {
+                break;
+            }
+        }
+        block.flip();
+        return block.remaining() / ENTRY_BYTES;
+    }
+
+    // Adds entries, each {key, offset}, by merging them with the file into a new one; the entries are sorted here
+    public void merge(List<long[]> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        entries.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        File merged = new File(file.getPath() + ".tmp");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 1 << 16))) {
+            int next = 0;
+            for (long i = 0; i < entryCount; i++) {
+                long key = in.readLong();
+                long offset = in.readLong();
+                for (; next < entries.size() && entries.get(next)[0] < key; next++) {
+                    out.writeLong(entries.get(next)[0]);
+                    out.writeLong(entries.get(next)[1]);
+                }
+                out.writeLong(key);
+                out.writeLong(offset);
+            }
+            for (; next < entries.size(); next++) {
+                out.writeLong(entries.get(next)[0]);
+                out.writeLong(entries.get(next)[1]);
+            }
+        }
+        channel.close(); // Closed before the move, which would otherwise fail on Windows
+        Files.move(merged.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    public void clear() throws IOException {
+        channel.truncate(0);
+        entryCount = 0;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        entryCount = channel.size() / ENTRY_BYTES;
+    }
+}
+
+// Compact on-disk tier for claims that are no longer worked on. Records are appended to archive.dat and found
+// through an open-addressing hash table in archive.idx, memory mapped, so nothing per claim is kept on the heap.
+// Each 8-byte slot holds 24 bits of the ID hash and the 40-bit record offset + 1; 0 is empty and -1 a deleted slot.
+// Claim date, exam date and amount each have an ArchiveKeyIndex beside it, so range scans read only the records
+// in range, in order.
+class ClaimArchive {
+    private static final int HEADER_BYTES = 12; // capacity, live records, deleted slots
+    private static final int MIN_CAPACITY = 1024;
+    private static final ClaimField[] KEY_FIELDS = {ClaimField.CLAIM_DATE, ClaimField.EXAM_DATE, ClaimField.CLAIM_AMOUNT};
+    private static final int KEY_CHUNK = 1 << 18; // Records whose keys are sorted in memory at once by rebuildKeys
+    private static final int KEY_BLOCK_ENTRIES = 256; // Key entries a range scan reads at a time
+    private static final long EMPTY = 0L;
+    private static final long DELETED = -1L;
+    private static final long OFFSET_MASK = (1L << 40) - 1;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final File movingFile;
+    private final File cardsFile;
+    private ClaimIdFilter cards; // Card numbers of archived claims, so card queries can skip the scan
+    private final Map<ClaimField, ArchiveKeyIndex> keys = new EnumMap<>(ClaimField.class);
+    private int keysVersion; // Changes whenever the key files are rewritten, which ends range scans still open
+    private RandomAccessFile data;
+    private long dataLength;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int liveCount;
+    private int deletedCount;
+
+    public ClaimArchive(String directory) {
+        new File(directory).mkdirs();
+        dataFile = new File(directory, "archive.dat");
+        indexFile = new File(directory, "archive.idx");
+        movingFile = new File(directory, "moving.txt");
+        cardsFile = new File(directory, "archive.cards");
+        try {
+            data = new RandomAccessFile(dataFile, "rw");
+            dataLength = data.length();
+            boolean created = !indexFile.exists() || indexFile.length() < HEADER_BYTES;
+            if (created) {
+                mapIndex(indexFile, MIN_CAPACITY);
+                writeHeader();
+            } else {
+                RandomAccessFile header = new RandomAccessFile(indexFile, "r");
+                int storedCapacity = header.readInt();
+                header.close();
+                mapIndex(indexFile, storedCapacity);
+                liveCount = index.getInt(4);
+                deletedCount = index.getInt(8);
+            }
+            if (cardsFile.exists()) {
+                cards = ClaimIdFilter.readFrom(cardsFile.getPath());
+            } else {
+                // Archives written before card filters were kept are indexed once
+                cards = new ClaimIdFilter(Math.max(capacity / 2, liveCount));
+                forEach(claim -> addCard(cards, claim.cardNumber));
+                cards.writeTo(cardsFile.getPath());
+            }
+            boolean keysMissing = false;
+            for (ClaimField field : KEY_FIELDS) {
+                File keyFile = new File(directory, "archive." + field.name().toLowerCase() + ".keys");
+                keysMissing |= !keyFile.exists();
+                keys.put(field, new ArchiveKeyIndex(keyFile));
+            }
+            if (keysMissing) {
+                rebuildKeys(); // Likewise for archives written before the key files
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // False only if no archived claim has ever had this card number
+    public synchronized boolean mightHaveCard(String cardNumber) {
+        return cards.mightContain(cardNumber);
+    }
+
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    // IDs being moved in from another store, written before the move and cleared once that store no longer holds
+    // them, so a move cut short can be settled the next time both are opened
+    public synchronized void beginMove(List<String> claimIds) {
+        try {
+            Files.write(movingFile.toPath(), claimIds);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void endMove() {
+        movingFile.delete();
+    }
+
+    public synchronized List<String> unfinishedMove() {
+        if (!movingFile.exists()) {
+            return Collections.emptyList();
+        }
+        try {
+            return Files.readAllLines(movingFile.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Stores the claim, replacing any archived copy with the same ID
+    public synchronized void put(Claim claim) {
+        putAll(Collections.singletonList(claim));
+    }
+
+    // Appends the whole batch with one write and grows the table once, up front
+    public synchronized void putAll(List<Claim> toArchive) {
+        Map<String, Claim> latest = new LinkedHashMap<>();
+        for (Claim claim : toArchive) {
+            latest.put(claim.id, claim); // Last copy of a repeated ID wins
+        }
+        Collection<Claim> claims = latest.values();
+        try {
+            for (Claim claim : claims) {
+                remove(claim.id);
+            }
+            if ((liveCount + deletedCount + claims.size()) * 2L > capacity) {
+                rebuild(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, liveCount + claims.size())) * 4));
+            }
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            Map<ClaimField, List<long[]>> newKeys = newKeyLists();
+            for (Claim claim : claims) {
+                byte[] record = encode(claim);
+                insert(index, capacity, claim.id, dataLength + batch.size());
+                addKeys(newKeys, claim, dataLength + batch.size());
+                batch.write(record);
+                addCard(cards, claim.cardNumber);
+            }
+            cards.writeTo(cardsFile.getPath()); // Before the records, so the filter never misses an archived card
+            mergeKeys(newKeys); // Likewise, so range scans never miss one
+            data.seek(dataLength);
+            data.write(batch.toByteArray());
+            dataLength += batch.size();
+            liveCount += claims.size();
+            writeHeader();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized Claim get(String claimId) {
+        try {
+            int slot = find(claimId);
+            return slot < 0 ? null : read(index.getLong(HEADER_BYTES + slot * 8) & OFFSET_MASK);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized boolean remove(String claimId) {
+        try {
+            int slot = find(claimId);
+            if (slot < 0) {
+                return false;
+            }
+            index.putLong(HEADER_BYTES + slot * 8, DELETED);
+            liveCount--;
+            deletedCount++;
+            writeHeader();
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Sequential scan of every live record in file order
+    public synchronized void forEach(Consumer<Claim> action) {
+        scan((claim, offset) -> action.accept(claim));
+    }
+
+    // Live archived claims with from <= claim date <= to in date order, read lazily; a null bound leaves that side open
+    public Iterator<Claim> getByClaimDate(Date from, Date to) {
+        return range(ClaimField.CLAIM_DATE, from == null ? Long.MIN_VALUE : from.getTime(),
+                to == null ? Long.MAX_VALUE : to.getTime());
+    }
+
+    public Iterator<Claim> getByExamDate(Date from, Date to) {
+        return range(ClaimField.EXAM_DATE, from == null ? Long.MIN_VALUE : from.getTime(),
+                to == null ? Long.MAX_VALUE : to.getTime());
+    }
+
+    public Iterator<Claim> getByClaimAmount(Double min, Double max) {
+        return range(ClaimField.CLAIM_AMOUNT, min == null ? Long.MIN_VALUE : ArchiveKeyIndex.sortableKey(min),
+                max == null ? Long.MAX_VALUE : ArchiveKeyIndex.sortableKey(max));
+    }
+
+    // Archived claims in the narrowest of the query's date and amount ranges, read lazily; null if the query has
+    // none. The caller still checks the query's other conditions.
+    public synchronized Iterator<Claim> rangeCandidates(ClaimQuery query) {
+        long[] range = narrowestRange(query);
+        return range == null ? null : range(KEY_FIELDS[(int) range[0]], range[1], range[2]);
+    }
+
+    // How rangeCandidates finds its claims, for explain; null if the query has no range
+    public synchronized String explainRange(ClaimQuery query) {
+        long[] range = narrowestRange(query);
+        return range == null ? null
+                : "archive key range on " + KEY_FIELDS[(int) range[0]] + " (~" + range[3] + " archived claims)";
+    }
+
+    // {index into KEY_FIELDS, from key, to key, entries in range} of the query's range with the fewest key entries
+    private long[] narrowestRange(ClaimQuery query) {
+        List<long[]> ranges = new ArrayList<>();
+        if (query.hasClaimDateRange()) {
+            ranges.add(new long[]{0, query.claimDateFrom == null ? Long.MIN_VALUE : query.claimDateFrom.getTime(),
+                    query.claimDateTo == null ? Long.MAX_VALUE : query.claimDateTo.getTime(), 0});
+        }
+        if (query.hasExamDateRange()) {
+            ranges.add(new long[]{1, query.examDateFrom == null ? Long.MIN_VALUE : query.examDateFrom.getTime(),
+                    query.examDateTo == null ? Long.MAX_VALUE : query.examDateTo.getTime(), 0});
+        }
+        if (query.hasAmountRange()) {
+            ranges.add(new long[]{2, query.minAmount == null ? Long.MIN_VALUE : ArchiveKeyIndex.sortableKey(query.minAmount),
+                    query.maxAmount == null ? Long.MAX_VALUE : ArchiveKeyIndex.sortableKey(query.maxAmount), 0});
+        }
+        long[] narrowest = null;
+        try {
+            for (long[] range : ranges) {
+                ArchiveKeyIndex keyIndex = keys.get(KEY_FIELDS[(int) range[0]]);
+                long end = range[2] == Long.MAX_VALUE ? keyIndex.size() : keyIndex.lowerBound(range[2] + 1);
+                range[3] = Math.max(0, end - keyIndex.lowerBound(range[1]));
+                if (narrowest == null || range[3] < narrowest[3]) {
+                    narrowest = range;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return narrowest;
+    }
+
+    // Walks the field's key entries from from to to, a block at a time, and reads each record only when it is
+    // reached. Entries of removed records, and records whose key no longer matches, are skipped.
+    private synchronized Iterator<Claim> range(ClaimField field, long from, long to) {
+        ArchiveKeyIndex keyIndex = keys.get(field);
+        int version = keysVersion;
+        long start;
+        try {
+            start = keyIndex.lowerBound(from);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Iterator<Claim>() {
+            private final ByteBuffer block = ByteBuffer.allocate(KEY_BLOCK_ENTRIES * ArchiveKeyIndex.ENTRY_BYTES);
+            private long position = start; // Next entry to read into block
+            private Claim next;
+            private boolean finished;
+
+            {
+                block.limit(0);
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !finished) {
+                    advance();
+                }
+                return next != null;
+            }
+
+            @Override
+            public Claim next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Claim claim = next;
+                next = null;
+                return claim;
+            }
+
+            private void advance() {
+                synchronized (ClaimArchive.this) {
+                    if (version != keysVersion) {
+                        throw new ConcurrentModificationException("Archive changed during a range scan");
+                    }
+                    try {
+                        while (true) {
+                            if (!block.hasRemaining()) {
+                                int read = keyIndex.read(position, block);
+                                if (read == 0) {
+                                    finished = true;
+                                    return;
+                                }
+                                position += read;
+                            }
+                            long key = block.getLong();
+                            long offset = block.getLong();
+                            if (key > to) {
+                                finished = true;
+                                return;
+                            }
+                            Claim claim = readLive(offset);
+                            if (claim != null && Objects.equals(keyOf(field, claim), key)) {
+                                next = claim;
+                                return;
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        };
+    }
+
+    // Every live record in file order, with its offset
+    private void scan(ObjLongConsumer<Claim> action) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataFile), 1 << 16))) {
+            long offset = 0;
+            while (offset < dataLength) {
+                int length = in.readInt();
+                byte[] record = new byte[length];
+                in.readFully(record);
+                Claim claim = decode(record);
+                int slot = find(claim.id);
+                if (slot >= 0 && (index.getLong(HEADER_BYTES + slot * 8) & OFFSET_MASK) == offset + 1) {
+                    action.accept(claim, offset);
+                }
+                offset += 4 + length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            index.force();
+            indexChannel.close();
+            data.close();
+            for (ArchiveKeyIndex keyIndex : keys.values()) {
+                keyIndex.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeHeader() {
+        index.putInt(0, capacity);
+        index.putInt(4, liveCount);
+        index.putInt(8, deletedCount);
+    }
+
+    private void mapIndex(File file, int slots) throws IOException {
+        indexChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + slots * 8L);
+        capacity = slots;
+    }
+
+    // Slot holding the ID, or -1; only records whose stored hash bits match are read back to compare IDs
+    private int find(String claimId) throws IOException {
+        int hash = hash(claimId);
+        long fragment = (long) (hash >>> 8) << 40;
+        int mask = capacity - 1;
+        for (int i = 0, slot = hash & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+            long entry = index.getLong(HEADER_BYTES + slot * 8);
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (entry != DELETED && (entry & ~OFFSET_MASK) == fragment
+                    && claimId.equals(readId((entry & OFFSET_MASK) - 1))) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static void insert(MappedByteBuffer table, int capacity, String claimId, long offset) {
+        int hash = hash(claimId);
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (true) {
+            long entry = table.getLong(HEADER_BYTES + slot * 8);
+            if (entry == EMPTY || entry == DELETED) {
+                table.putLong(HEADER_BYTES + slot * 8, ((long) (hash >>> 8) << 40) | (offset + 1));
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Copies only the live records into fresh files, which both grows the table and drops deleted records.
+    // Records are streamed from the old file to the new one as they are, without decoding them.
+    private void rebuild(int newCapacity) throws IOException {
+        File newData = new File(dataFile.getPath() + ".tmp");
+        File newIndex = new File(indexFile.getPath() + ".tmp");
+        newIndex.delete();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataFile), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newData), 1 << 16));
+             FileChannel channel = FileChannel.open(newIndex.toPath(), StandardOpenOption.CREATE_NEW,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + newCapacity * 8L);
+            ClaimIdFilter newCards = new ClaimIdFilter(newCapacity / 2); // Sized for a full table
+            int live = 0;
+            long offset = 0;
+            long newOffset = 0;
+            while (offset < dataLength) {
+                int length = in.readInt();
+                byte[] record = new byte[length];
+                in.readFully(record);
+                String claimId = new DataInputStream(new ByteArrayInputStream(record)).readUTF();
+                int slot = find(claimId);
+                if (slot >= 0 && (index.getLong(HEADER_BYTES + slot * 8) & OFFSET_MASK) == offset + 1) {
+                    out.writeInt(length);
+                    out.write(record);
+                    insert(table, newCapacity, claimId, newOffset);
+                    addCard(newCards, readCardNumber(record));
+                    newOffset += 4 + length;
+                    live++;
+                }
+                offset += 4 + length;
+            }
+            table.putInt(0, newCapacity);
+            table.putInt(4, live);
+            table.putInt(8, 0);
+            table.force();
+            newCards.writeTo(cardsFile.getPath());
+            cards = newCards;
+        }
+        data.close();
+        indexChannel.close();
+        index = null;
+        Files.move(newData.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(newIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        data = new RandomAccessFile(dataFile, "rw");
+        dataLength = data.length();
+        mapIndex(indexFile, newCapacity);
+        liveCount = index.getInt(4);
+        deletedCount = 0;
+        rebuildKeys(); // Every record has moved
+    }
+
+    // Rewrites the key files from the live records, sorting KEY_CHUNK records' keys at a time and merging them in
+    private void rebuildKeys() throws IOException {
+        for (ArchiveKeyIndex keyIndex : keys.values()) {
+            keyIndex.clear();
+        }
+        Map<ClaimField, List<long[]>> chunk = newKeyLists();
+        int[] chunkSize = new int[1];
+        scan((claim, offset) -> {
+            addKeys(chunk, claim, offset);
+            if (++chunkSize[0] == KEY_CHUNK) {
+                try {
+                    mergeKeys(chunk);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                chunkSize[0] = 0;
+            }
+        });
+        mergeKeys(chunk);
+    }
+
+    private static Map<ClaimField, List<long[]>> newKeyLists() {
+        Map<ClaimField, List<long[]>> lists = new EnumMap<>(ClaimField.class);
+        for (ClaimField field : KEY_FIELDS) {
+            lists.put(field, new ArrayList<>());
+        }
+        return lists;
+    }
+
+    private static void addKeys(Map<ClaimField, List<long[]>> lists, Claim claim, long offset) {
+        for (ClaimField field : KEY_FIELDS) {
+            Long key = keyOf(field, claim);
+            if (key != null) {
+                lists.get(field).add(new long[]{key, offset});
+            }
+        }
+    }
+
+    // Merges and empties the lists
+    private void mergeKeys(Map<ClaimField, List<long[]>> lists) throws IOException {
+        for (Map.Entry<ClaimField, List<long[]>> entry : lists.entrySet()) {
+            keys.get(entry.getKey()).merge(entry.getValue());
+            entry.getValue().clear();
+        }
+        keysVersion++;
+    }
+
+    // Null for a claim without a value for the field, which is then not keyed, as in SortedClaimIndex
+    private static Long keyOf(ClaimField field, Claim claim) {
+        switch (field) {
+            case CLAIM_DATE:
+                return claim.claimDate == null ? null : claim.claimDate.getTime();
+            case EXAM_DATE:
+                return claim.examDate == null ? null : claim.examDate.getTime();
+            default:
+                return ArchiveKeyIndex.sortableKey(claim.claimAmount);
+        }
+    }
+
+    // The claim at offset if that record is still its live copy, otherwise null
+    private Claim readLive(long offset) throws IOException {
+        if (offset >= dataLength) {
+            return null; // Keyed by a batch whose records were never written
+        }
+        Claim claim = decode(readRecord(offset));
+        int slot = find(claim.id);
+        return slot >= 0 && (index.getLong(HEADER_BYTES + slot * 8) & OFFSET_MASK) == offset + 1 ? claim : null;
+    }
+
+    private static void addCard(ClaimIdFilter filter, String cardNumber) {
+        if (cardNumber != null) {
+            filter.add(cardNumber);
+        }
+    }
+
+    // Reads the fields of an encoded record up to the card number
+    private static String readCardNumber(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        in.readUTF();
+        in.readLong();
+        readString(in);
+        return readString(in);
+    }
+
+    private String readId(long offset) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(readRecord(offset))).readUTF();
+    }
+
+    private Claim read(long offset) throws IOException {
+        return decode(readRecord(offset - 1));
+    }
+
+    private byte[] readRecord(long offset) throws IOException {
+        byte[] length = new byte[4];
+        data.seek(offset);
+        data.readFully(length);
+        byte[] record = new byte[((length[0] & 0xFF) << 24) | ((length[1] & 0xFF) << 16)
+                | ((length[2] & 0xFF) << 8) | (length[3] & 0xFF)];
+        data.readFully(record);
+        return record;
+    }
+
+    // Record layout: int length of the rest, then the claim fields
+    static byte[] encode(Claim claim) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // Length, filled in below
+        out.writeUTF(claim.id);
+        out.writeLong(claim.claimDate == null ? Long.MIN_VALUE : claim.claimDate.getTime());
+        writeString(out, claim.insuredPerson);
+        writeString(out, claim.cardNumber);
+        out.writeLong(claim.examDate == null ? Long.MIN_VALUE : claim.examDate.getTime());
+        writeString(out, claim.documents == null ? null : String.join(";", claim.documents));
+        out.writeDouble(claim.claimAmount);
+        writeString(out, claim.status);
+        writeString(out, claim.receiverBankingInfo);
+        byte[] record = bytes.toByteArray();
+        int length = record.length - 4;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        return record;
+    }
+
+    static Claim decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String id = in.readUTF();
+        long claimDate = in.readLong();
+        String insuredPerson = readString(in);
+        String cardNumber = readString(in);
+        long examDate = in.readLong();
+        String documents = readString(in);
+        double claimAmount = in.readDouble();
+        String status = readString(in);
+        String receiverBankingInfo = readString(in);
+        return new Claim(id, claimDate == Long.MIN_VALUE ? null : new Date(claimDate), insuredPerson, cardNumber,
+                examDate == Long.MIN_VALUE ? null : new Date(examDate),
+                documents == null ? null : Arrays.asList(documents.split(";")),
+                claimAmount, status, receiverBankingInfo);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static int hash(String id) {
+        int hash = id.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
+
+// Keeps active claims in the hot partitions and moves Done claims older than a cut-off into a ClaimArchive.
+// Archived claims are still found by ID through a small read-through cache, and are moved back to the hot
+// tier as soon as they are changed again. A claim is only ever in one tier on disk: a move saves the hot tier
+// before it is marked finished, and one that was cut short is undone when the tiers are next opened.
+class TieredClaimProcessManager implements ClaimProcessManager {
+    private static final int CACHE_SIZE = 1000;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final PartitionedClaimProcessManager hot;
+    private final ClaimArchive archive;
+    private final int archiveAfterDays;
+    private final Map<String, Claim> cache = new LinkedHashMap<String, Claim>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Claim> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    public TieredClaimProcessManager(PartitionedClaimProcessManager hot, ClaimArchive archive, int archiveAfterDays) {
+        this.hot = hot;
+        this.archive = archive;
+        this.archiveAfterDays = archiveAfterDays;
+        // Claims of an unfinished move that are still hot keep their hot copy; the next run archives them again
+        for (String claimId : archive.unfinishedMove()) {
+            if (hot.getOne(claimId) != null) {
+                archive.remove(claimId);
+            }
+        }
+        archive.endMove();
+    }
+
+    // Moves every Done claim filed more than archiveAfterDays ago to the archive; returns how many moved
+    public synchronized int archiveDoneClaims() {
+        Date cutoff = new Date(System.currentTimeMillis() - archiveAfterDays * DAY_MILLIS);
+        List<Claim> eligible = new ArrayList<>();
+        Iterator<Claim> old = hot.getByClaimDate(null, cutoff);
+        while (old.hasNext()) {
+            Claim claim = old.next();
+            if ("Done".equalsIgnoreCase(claim.status)) {
+                eligible.add(claim);
+            }
+        }
+        if (eligible.isEmpty()) {
+            return 0;
+        }
+        List<String> ids = new ArrayList<>(eligible.size());
+        for (Claim claim : eligible) {
+            ids.add(claim.id);
+        }
+        archive.beginMove(ids);
+        archive.putAll(eligible); // Written to the archive before it leaves the hot tier
+        for (Claim claim : eligible) {
+            cache.remove(claim.id);
+            hot.delete(claim.id);
+        }
+        hot.save();
+        archive.endMove();
+        return eligible.size();
+    }
+
+    public synchronized int archivedCount() {
+        return archive.size();
+    }
+
+    @Override
+    public synchronized void add(Claim claim) {
+        forget(claim.id);
+        hot.add(claim);
+    }
+
+    @Override
+    public synchronized void update(Claim claim) {
+        if (hot.getOne(claim.id) != null) {
+            hot.update(claim);
+        } else if (forget(claim.id)) {
+            hot.add(claim); // Changed again, so it is active
+        }
+    }
+
+    @Override
+    public synchronized List<Claim> transitionStatus(List<String> claimIds, ClaimStatus from, ClaimStatus to) {
+        // Only Done claims are archived, and Done is the last status, so archived claims never move
+        return hot.transitionStatus(claimIds, from, to);
+    }
+
+    @Override
+    public synchronized void delete(String claimId) {
+        hot.delete(claimId);
+        forget(claimId);
+    }
+
+    @Override
+    public synchronized Claim getOne(String claimId) {
+        Claim claim = hot.getOne(claimId);
+        if (claim != null) {
+            return claim;
+        }
+        claim = cache.get(claimId);
+        if (claim == null) {
+            claim = archive.get(claimId);
+            if (claim != null) {
+                cache.put(claimId, claim);
+            }
+        }
+        return claim;
+    }
+
+    // These read the whole archive sequentially
+    @Override
+    public synchronized List<Claim> getAll() {
+        List<Claim> all = hot.getAll();
+        archive.forEach(all::add);
+        return all;
+    }
+
+    @Override
+    public synchronized void forEach(Consumer<Claim> action) {
+        hot.forEach(action);
+        archive.forEach(action);
+    }
+
+    @Override
+    public synchronized List<String> getAllClaimIds() {
+        List<String> ids = hot.getAllClaimIds();
+        archive.forEach(claim -> ids.add(claim.id));
+        return ids;
+    }
+
+    // Archived claims are not name-indexed, so only active claims are searched
+    @Override
+    public synchronized List<String> searchByInsuredPerson(String query, int limit) {
+        return hot.searchByInsuredPerson(query, limit);
+    }
+
+    // Both tiers are read lazily through their range indexes and merged into order
+    @Override
+    public synchronized Iterator<Claim> getByClaimDate(Date from, Date to) {
+        return PartitionedClaimProcessManager.mergeSorted(Arrays.asList(hot.getByClaimDate(from, to),
+                archive.getByClaimDate(from, to)), Comparator.comparing(claim -> claim.claimDate));
+    }
+
+    @Override
+    public synchronized Iterator<Claim> getByExamDate(Date from, Date to) {
+        return PartitionedClaimProcessManager.mergeSorted(Arrays.asList(hot.getByExamDate(from, to),
+                archive.getByExamDate(from, to)), Comparator.comparing(claim -> claim.examDate));
+    }
+
+    @Override
+    public synchronized Iterator<Claim> getByClaimAmount(Double min, Double max) {
+        return PartitionedClaimProcessManager.mergeSorted(Arrays.asList(hot.getByClaimAmount(min, max),
+                archive.getByClaimAmount(min, max)), Comparator.comparingDouble(claim -> claim.claimAmount));
+    }
+
+    // Only Done claims are archived, so queries for any other status never read the archive, and neither do card
+    // queries for a card the archive has never held. A query with a date or amount range reads only the archived
+    // claims in its narrowest range; any other query scans the archive.
+    @Override
+    public synchronized List<Claim> query(ClaimQuery query) {
+        List<Claim> matches = hot.query(query);
+        if (scansArchive(query)) {
+            Consumer<Claim> addMatch = claim -> {
+                if (query.matches(claim)) {
+                    matches.add(claim);
+                }
+            };
+            Iterator<Claim> candidates = query.useIndexes ? archive.rangeCandidates(query) : null;
+            if (candidates == null) {
+                archive.forEach(addMatch);
+            } else {
+                candidates.forEachRemaining(addMatch);
+            }
+        }
+        return query.finish(matches);
+    }
+
+    @Override
+    public synchronized String explain(ClaimQuery query) {
+        String explanation = hot.explain(query);
+        if (scansArchive(query)) {
+            String range = query.useIndexes ? archive.explainRange(query) : null;
+            explanation += "; plus " + (range != null ? range : "sequential scan of " + archive.size() + " archived claims");
+        }
+        return explanation;
+    }
+
+    public synchronized void close() {
+        archive.close();
+    }
+
+    private boolean scansArchive(ClaimQuery query) {
+        return (query.status == null || query.status.equalsIgnoreCase("Done"))
+                && (query.cardNumber == null || archive.mightHaveCard(query.cardNumber));
+    }
+
+    private boolean forget(String claimId) {
+        cache.remove(claimId);
+        return archive.remove(claimId);
+    }
+}
+
+// Local store for claim documents, keyed by the SHA-256 of their content so identical files are kept once.
+// Every (claim, document name) pair holds one reference; a file is deleted when its last reference goes.
+// References are appended to refs.dat as binary records (operation byte, then claim ID, name and hash written
+// with writeUTF, so names may contain any character) and replayed on open.
+class DocumentStore {
+    private final File objects;
+    private final File journal;
+    private final Map<String, Map<String, String>> hashByNameByClaim = new HashMap<>();
+    private final Map<String, Integer> refCounts = new HashMap<>();
+    private DataOutputStream journalWriter;
+
+    public DocumentStore(String directory) {
+        objects = new File(directory, "objects");
+        objects.mkdirs();
+        journal = new File(directory, "refs.dat");
+        try {
+            long entries = replayJournal();
+            if (entries > 2L * liveReferenceCount() + 1000) {
+                compactJournal();
+            }
+            journalWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Copies the file into the store (unless identical content is already there) and records the reference.
+    // Returns the content hash.
+    public synchronized String attach(String claimId, String documentName, String sourcePath) throws IOException {
+        File temp = File.createTempFile("upload", ".tmp", objects);
+        String hash;
+        try (FileChannel in = FileChannel.open(Paths.get(sourcePath), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+            // Hash and copy in the same pass over the source
+            MessageDigest digest = sha256();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                ByteBuffer view = buffer.duplicate();
+                digest.update(view);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            hash = toHex(digest.digest());
+        }
+
+        File object = objectFile(hash);
+        if (object.exists()) {
+            temp.delete(); // Same content is already stored
+        } else {
+            object.getParentFile().mkdirs();
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Re-attaching a name replaces the old content. The new reference is counted before the old one is
+        // dropped, so re-attaching the same content does not delete it.
+        String previous = hashByNameByClaim.computeIfAbsent(claimId, k -> new HashMap<>()).put(documentName, hash);
+        refCounts.merge(hash, 1, Integer::sum);
+        log('+', claimId, documentName, hash);
+        if (previous != null) {
+            dropReference(previous);
+        }
+        return hash;
+    }
+
+    public synchronized boolean contains(String claimId, String documentName) {
+        return hashFor(claimId, documentName) != null;
+    }
+
+    // Drops one reference and deletes the stored file if nothing else refers to it
+    public synchronized void release(String claimId, String documentName) {
+        Map<String, String> documents = hashByNameByClaim.get(claimId);
+        String hash = documents == null ? null : documents.remove(documentName);
+        if (hash == null) {
+            return;
+        }
+        if (documents.isEmpty()) {
+            hashByNameByClaim.remove(claimId);
+        }
+        log('-', claimId, documentName, hash);
+        dropReference(hash);
+    }
+
+    private void dropReference(String hash) {
+        if (refCounts.merge(hash, -1, Integer::sum) <= 0) {
+            refCounts.remove(hash);
+            objectFile(hash).delete();
+        }
+    }
+
+    // Called when a claim is deleted
+    public synchronized void releaseClaim(String claimId) {
+        Map<String, String> documents = hashByNameByClaim.get(claimId);
+        if (documents != null) {
+            for (String documentName : new ArrayList<>(documents.keySet())) {
+                release(claimId, documentName);
+            }
+        }
+    }
+
+    // Sends the document to the channel with FileChannel.transferTo, so the bytes never pass through the heap
+    public long transferTo(String claimId, String documentName, WritableByteChannel target) throws IOException {
+        try (FileChannel in = FileChannel.open(documentPath(claimId, documentName), StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, target);
+            }
+            return size;
+        }
+    }
+
+    // Read-only memory-mapped view of the document; the mapping stays valid after this returns
+    public MappedByteBuffer map(String claimId, String documentName) throws IOException {
+        try (FileChannel in = FileChannel.open(documentPath(claimId, documentName), StandardOpenOption.READ)) {
+            return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+    }
+
+    public synchronized int storedFileCount() {
+        return refCounts.size();
+    }
+
+    public synchronized long liveReferenceCount() {
+        long count = 0;
+        for (Map<String, String> documents : hashByNameByClaim.values()) {
+            count += documents.size();
+        }
+        return count;
+    }
+
+    public synchronized void close() {
+        try {
+            journalWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized Path documentPath(String claimId, String documentName) throws FileNotFoundException {
+        String hash = hashFor(claimId, documentName);
+        if (hash == null) {
+            throw new FileNotFoundException("No document " + documentName + " stored for claim " + claimId);
+        }
+        return objectFile(hash).toPath();
+    }
+
+    private String hashFor(String claimId, String documentName) {
+        Map<String, String> documents = hashByNameByClaim.get(claimId);
+        return documents == null ? null : documents.get(documentName);
+    }
+
+    private File objectFile(String hash) {
+        return new File(new File(objects, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private void log(char operation, String claimId, String documentName, String hash) {
+        try {
+            writeEntry(journalWriter, operation, claimId, documentName, hash);
+            journalWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long replayJournal() throws IOException {
+        long entries = 0;
+        if (!journal.exists()) {
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            while (true) {
+                String[] parts;
+                try {
+                    parts = new String[]{String.valueOf((char) in.readByte()), in.readUTF(), in.readUTF(), in.readUTF()};
+                } catch (EOFException e) {
+                    break; // End of the journal, or a torn last entry from a crash
+                }
+                entries++;
+                Map<String, String> documents = hashByNameByClaim.computeIfAbsent(parts[1], k -> new HashMap<>());
+                String previous = parts[0].equals("+") ? documents.put(parts[2], parts[3]) : documents.remove(parts[2]);
+                if (previous != null) {
+                    refCounts.merge(previous, -1, Integer::sum);
+                }
+                if (parts[0].equals("+")) {
+                    refCounts.merge(parts[3], 1, Integer::sum);
+                }
+                if (documents.isEmpty()) {
+                    hashByNameByClaim.remove(parts[1]);
+                }
+            }
+        }
+        refCounts.values().removeIf(count -> count <= 0);
+        return entries;
+    }
+
+    private void compactJournal() throws IOException {
+        File compacted = new File(journal.getPath() + ".tmp");
+        try (DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+            for (Map.Entry<String, Map<String, String>> claim : hashByNameByClaim.entrySet()) {
+                for (Map.Entry<String, String> document : claim.getValue().entrySet()) {
+                    writeEntry(writer, '+', claim.getKey(), document.getKey(), document.getValue());
+                }
+            }
+        }
+        Files.move(compacted.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeEntry(DataOutputStream out, char operation, String claimId, String documentName,
+                                   String hash) throws IOException {
+        out.writeByte(operation);
+        out.writeUTF(claimId);
+        out.writeUTF(documentName);
+        out.writeUTF(hash);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JRE ships SHA-256
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
+
+// Old values of the fields one update changed; applying it to the newer state gives the state before timestamp
+class ClaimDelta {
+    long timestamp;
+    int changedFields; // Bit per ClaimField ordinal
+    Object[] oldValues; // One per set bit, in ordinal order
+
+    public ClaimDelta(long timestamp, int changedFields, Object[] oldValues) {
+        this.timestamp = timestamp;
+        this.changedFields = changedFields;
+        this.oldValues = oldValues;
+    }
+
+    public void undo(Claim claim) {
+        int next = 0;
+        for (ClaimField field : ClaimField.values()) {
+            if ((changedFields & (1 << field.ordinal())) != 0) {
+                field.set(claim, oldValues[next++]);
+            }
+        }
+    }
+}
+
+// Version chain of one claim. createdAt is 0 for claims that existed before history was kept.
+class ClaimVersions {
+    long createdAt;
+    long deletedAt;
+    Claim deletedSnapshot;
+    List<ClaimDelta> deltas = new ArrayList<>(2);
+}
+
+// Audit trail of claim changes. Each update stores only the changed fields' previous values, so a read as of an
+// earlier time starts from the current (or last deleted) state and undoes newer deltas. Every change is appended
+// to history.log and replayed on open; compaction keeps one version per day for old changes and rewrites the log.
+class ClaimHistory {
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final long MIN_COMPACTION_GROWTH = 1 << 20; // Bytes appended before a scheduled rewrite is worth it
+
+    private final File log;
+    private final Map<String, ClaimVersions> versionsById = new HashMap<>();
+    private DataOutputStream logWriter;
+    private long deltaCount;
+    private long compactedLength; // Log size after the last rewrite, or when it was opened
+    private ScheduledExecutorService compactor;
+
+    public ClaimHistory(String logPath) {
+        log = new File(logPath);
+        compactedLength = log.length();
+        try {
+            replay();
+            logWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void recordCreate(Claim claim, long timestamp) {
+        ClaimVersions versions = new ClaimVersions(); // A reused ID starts a fresh chain
+        versions.createdAt = timestamp;
+        deltaCount -= chainLength(versionsById.put(claim.id, versions));
+        try {
+            logWriter.writeByte('C');
+            logWriter.writeUTF(claim.id);
+            logWriter.writeLong(timestamp);
+            logWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void recordUpdate(Claim before, Claim after, long timestamp) {
+        recordUpdates(Collections.singletonList(before), Collections.singletonList(after), timestamp);
+    }
+
+    // Same as recordUpdate for each pair, with one write to the log for the whole batch
+    public synchronized void recordUpdates(List<Claim> before, List<Claim> after, long timestamp) {
+        try {
+            for (int i = 0; i < before.size(); i++) {
+                if (before.get(i) != after.get(i)) {
+                    appendUpdate(before.get(i), after.get(i), timestamp);
+                }
+            }
+            logWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Compares the stored claim with its replacement and keeps the fields that differ; no-op updates are not stored
+    private void appendUpdate(Claim before, Claim after, long timestamp) throws IOException {
+        int changedFields = 0;
+        List<Object> oldValues = new ArrayList<>();
+        for (ClaimField field : ClaimField.values()) {
+            Object oldValue = field.get(before);
+            if (!Objects.equals(oldValue, field.get(after))) {
+                changedFields |= 1 << field.ordinal();
+                oldValues.add(oldValue);
+            }
+        }
+        if (changedFields == 0) {
+            return;
+        }
+        ClaimDelta delta = new ClaimDelta(timestamp, changedFields, oldValues.toArray());
+        versionsById.computeIfAbsent(before.id, k -> new ClaimVersions()).deltas.add(delta);
+        deltaCount++;
+        writeDelta(logWriter, before.id, delta);
+    }
+
+    public synchronized void recordDelete(Claim last, long timestamp) {
+        ClaimVersions versions = versionsById.computeIfAbsent(last.id, k -> new ClaimVersions());
+        versions.deletedAt = timestamp;
+        versions.deletedSnapshot = last.copy();
+        try {
+            writeDelete(logWriter, last.id, timestamp, last);
+            logWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The claim as it was at timestamp, or null if it did not exist then. current is the live claim, if any.
+    public synchronized Claim asOf(String claimId, Claim current, long timestamp) {
+        ClaimVersions versions = versionsById.get(claimId);
+        Claim state;
+        if (versions != null && versions.deletedSnapshot != null) {
+            if (timestamp >= versions.deletedAt) {
+                return null;
+            }
+            state = versions.deletedSnapshot.copy();
+        } else if (current != null) {
+            state = current.copy();
+        } else {
+            return null;
+        }
+        if (versions == null) {
+            return state;
+        }
+        if (timestamp < versions.createdAt) {
+            return null;
+        }
+        for (int i = versions.deltas.size() - 1; i >= 0 && versions.deltas.get(i).timestamp > timestamp; i--) {
+            versions.deltas.get(i).undo(state);
+        }
+        return state;
+    }
+
+    public synchronized int versionCount(String claimId) {
+        return chainLength(versionsById.get(claimId)) + 1;
+    }
+
+    public synchronized long deltaCount() {
+        return deltaCount;
+    }
+
+    // Merges deltas older than retainMillis that fall on the same day into one, keeping the end-of-day state,
+    // then rewrites the log from the compacted chains
+    public synchronized void compact(long retainMillis) {
+        long horizon = System.currentTimeMillis() - retainMillis;
+        for (ClaimVersions versions : versionsById.values()) {
+            List<ClaimDelta> compacted = new ArrayList<>(versions.deltas.size());
+            for (ClaimDelta delta : versions.deltas) {
+                ClaimDelta previous = compacted.isEmpty() ? null : compacted.get(compacted.size() - 1);
+                if (previous != null && delta.timestamp < horizon
+                        && previous.timestamp / DAY_MILLIS == delta.timestamp / DAY_MILLIS) {
+                    compacted.set(compacted.size() - 1, merge(previous, delta));
+                } else {
+                    compacted.add(delta);
+                }
+            }
+            deltaCount -= versions.deltas.size() - compacted.size();
+            versions.deltas = compacted;
+        }
+
+        File rewritten = new File(log.getPath() + ".tmp");
+        try {
+            logWriter.close();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rewritten)))) {
+                for (Map.Entry<String, ClaimVersions> entry : versionsById.entrySet()) {
+                    ClaimVersions versions = entry.getValue();
+                    if (versions.createdAt != 0) {
+                        out.writeByte('C');
+                        out.writeUTF(entry.getKey());
+                        out.writeLong(versions.createdAt);
+                    }
+                    for (ClaimDelta delta : versions.deltas) {
+                        writeDelta(out, entry.getKey(), delta);
+                    }
+                    if (versions.deletedSnapshot != null) {
+                        writeDelete(out, entry.getKey(), versions.deletedAt, versions.deletedSnapshot);
+                    }
+                }
+            }
+            Files.move(rewritten.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            compactedLength = log.length();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                logWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Compacts only once the log has grown by half its compacted size (and at least MIN_COMPACTION_GROWTH bytes)
+    // since the last rewrite, so an idle or slowly growing log is not rewritten every period. Returns whether it ran.
+    public synchronized boolean compactIfGrown(long retainMillis) {
+        long growth = log.length() - compactedLength;
+        if (growth < Math.max(MIN_COMPACTION_GROWTH, compactedLength / 2)) {
+            return false;
+        }
+        compact(retainMillis);
+        return true;
+    }
+
+    public synchronized void startBackgroundCompaction(long periodMillis, long retainMillis) {
+        if (compactor != null) {
+            return;
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "claim-history-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> compactIfGrown(retainMillis), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        try {
+            logWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Older delta's values win for fields both changed, so undoing the merge reaches the state before the older one
+    private static ClaimDelta merge(ClaimDelta older, ClaimDelta newer) {
+        int changedFields = older.changedFields | newer.changedFields;
+        List<Object> oldValues = new ArrayList<>();
+        int olderNext = 0;
+        int newerNext = 0;
+        for (ClaimField field : ClaimField.values()) {
+            int bit = 1 << field.ordinal();
+            boolean inOlder = (older.changedFields & bit) != 0;
+            boolean inNewer = (newer.changedFields & bit) != 0;
+            Object newerValue = inNewer ? newer.oldValues[newerNext++] : null;
+            if (inOlder) {
+                oldValues.add(older.oldValues[olderNext++]);
+            } else if (inNewer) {
+                oldValues.add(newerValue);
+            }
+        }
+        return new ClaimDelta(older.timestamp, changedFields, oldValues.toArray());
+    }
+
+    private static int chainLength(ClaimVersions versions) {
+        return versions == null ? 0 : versions.deltas.size();
+    }
+
+    private void replay() throws IOException {
+        if (!log.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String claimId = in.readUTF();
+                long timestamp = in.readLong();
+                if (type == 'C') {
+                    ClaimVersions versions = new ClaimVersions();
+                    versions.createdAt = timestamp;
+                    deltaCount -= chainLength(versionsById.put(claimId, versions));
+                } else if (type == 'U') {
+                    int changedFields = in.readInt();
+                    List<Object> oldValues = new ArrayList<>();
+                    for (ClaimField field : ClaimField.values()) {
+                        if ((changedFields & (1 << field.ordinal())) != 0) {
+                            oldValues.add(readValue(in, field));
+                        }
+                    }
+                    versionsById.computeIfAbsent(claimId, k -> new ClaimVersions()).deltas
+                            .add(new ClaimDelta(timestamp, changedFields, oldValues.toArray()));
+                    deltaCount++;
+                } else {
+                    byte[] record = new byte[in.readInt()];
+                    in.readFully(record);
+                    ClaimVersions versions = versionsById.computeIfAbsent(claimId, k -> new ClaimVersions());
+                    versions.deletedAt = timestamp;
+                    versions.deletedSnapshot = ClaimArchive.decode(record);
+                }
+            }
+        } catch (EOFException e) {
+            System.out.println("Claim history ends with a partly written change; it was ignored.");
+        }
+    }
+
+    private static void writeDelta(DataOutputStream out, String claimId, ClaimDelta delta) throws IOException {
+        out.writeByte('U');
+        out.writeUTF(claimId);
+        out.writeLong(delta.timestamp);
+        out.writeInt(delta.changedFields);
+        int next = 0;
+        for (ClaimField field : ClaimField.values()) {
+            if ((delta.changedFields & (1 << field.ordinal())) != 0) {
+                writeValue(out, field, delta.oldValues[next++]);
+            }
+        }
+    }
+
+    // The archive's record format already carries its own length prefix
+    private static void writeDelete(DataOutputStream out, String claimId, long timestamp, Claim last) throws IOException {
+        out.writeByte('D');
+        out.writeUTF(claimId);
+        out.writeLong(timestamp);
+        out.write(ClaimArchive.encode(last));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(DataOutputStream out, ClaimField field, Object value) throws IOException {
+        switch (field) {
+            case CLAIM_DATE:
+            case EXAM_DATE:
+                out.writeLong(value == null ? Long.MIN_VALUE : ((Date) value).getTime());
+                break;
+            case CLAIM_AMOUNT:
+                out.writeDouble((Double) value);
+                break;
+            default:
+                String text = field == ClaimField.DOCUMENTS && value != null
+                        ? String.join(";", (List<String>) value) : (String) value;
+                out.writeBoolean(text != null);
+                if (text != null) {
+                    out.writeUTF(text);
+                }
+        }
+    }
+
+    private static Object readValue(DataInputStream in, ClaimField field) throws IOException {
+        switch (field) {
+            case CLAIM_DATE:
+            case EXAM_DATE:
+                long time = in.readLong();
+                return time == Long.MIN_VALUE ? null : new Date(time);
+            case CLAIM_AMOUNT:
+                return in.readDouble();
+            default:
+                String text = in.readBoolean() ? in.readUTF() : null;
+                return field == ClaimField.DOCUMENTS && text != null ? Arrays.asList(text.split(";")) : text;
+        }
+    }
+}
+
+// Records every add, update and delete in a ClaimHistory before passing it on. Updates must pass an edited copy
+// (see Claim.copy) rather than the stored object, otherwise there is nothing to compare against.
+class VersionedClaimProcessManager implements ClaimProcessManager {
+    private final ClaimProcessManager current;
+    private final ClaimHistory history;
+
+    public VersionedClaimProcessManager(ClaimProcessManager current, ClaimHistory history) {
+        this.current = current;
+        this.history = history;
+    }
+
+    public Claim asOf(String claimId, Date when) {
+        return history.asOf(claimId, current.getOne(claimId), when.getTime());
+    }
+
+    public int versionCount(String claimId) {
+        return history.versionCount(claimId);
+    }
+
+    public void close() {
+        history.close();
+    }
+
+    @Override
+    public void add(Claim claim) {
+        history.recordCreate(claim, System.currentTimeMillis());
+        current.add(claim);
+    }
+
+    @Override
+    public void update(Claim claim) {
+        Claim before = current.getOne(claim.id);
+        if (before == null) {
+            return;
+        }
+        if (before != claim) {
+            history.recordUpdate(before, claim, System.currentTimeMillis());
+        }
+        current.update(claim);
+    }
+
+    @Override
+    public List<Claim> transitionStatus(List<String> claimIds, ClaimStatus from, ClaimStatus to) {
+        List<Claim> before = current.transitionStatus(claimIds, from, to);
+        List<Claim> after = new ArrayList<>(before.size());
+        for (Claim claim : before) {
+            Claim moved = claim.copy();
+            moved.status = to.label;
+            after.add(moved);
+        }
+        history.recordUpdates(before, after, System.currentTimeMillis());
+        return before;
+    }
+
+    @Override
+    public void delete(String claimId) {
+        Claim last = current.getOne(claimId);
+        if (last != null) {
+            history.recordDelete(last, System.currentTimeMillis());
+        }
+        current.delete(claimId);
+    }
+
+    @Override
+    public Claim getOne(String claimId) {
+        return current.getOne(claimId);
+    }
+
+    @Override
+    public List<Claim> getAll() {
+        return current.getAll();
+    }
+
+    @Override
+    public void forEach(Consumer<Claim> action) {
+        current.forEach(action);
+    }
+
+    @Override
+    public List<String> getAllClaimIds() {
+        return current.getAllClaimIds();
+    }
+
+    @Override
+    public List<String> searchByInsuredPerson(String query, int limit) {
+        return current.searchByInsuredPerson(query, limit);
+    }
+
+    @Override
+    public Iterator<Claim> getByClaimDate(Date from, Date to) {
+        return current.getByClaimDate(from, to);
+    }
+
+    @Override
+    public Iterator<Claim> getByExamDate(Date from, Date to) {
+        return current.getByExamDate(from, to);
+    }
+
+    @Override
+    public Iterator<Claim> getByClaimAmount(Double min, Double max) {
+        return current.getByClaimAmount(min, max);
+    }
+
+    @Override
+    public List<Claim> query(ClaimQuery query) {
+        return current.query(query);
+    }
+
+    @Override
+    public String explain(ClaimQuery query) {
+        return current.explain(query);
+    }
+}
+
+// Claim workflow. Status text is matched case-insensitively, as the claims files have always been read.
+enum ClaimStatus {
+    NEW("New"),
+    PROCESSING("Processing"),
+    DONE("Done");
+
+    final String label;
+
+    ClaimStatus(String label) {
+        this.label = label;
+    }
+
+    // null for text that is not a known status
+    public static ClaimStatus parse(String status) {
+        for (ClaimStatus value : values()) {
+            if (value.label.equalsIgnoreCase(status)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    // Claims only move forward one step: New -> Processing -> Done
+    public boolean canMoveTo(ClaimStatus next) {
+        return next.ordinal() == ordinal() + 1;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
+
+// Progress of a StatusTransitionJob; a copy is passed to the progress callback after every batch
+class StatusTransitionReport {
+    ClaimStatus from;
+    ClaimStatus to;
+    int claimsMatched;
+    int claimsMoved;
+    int claimsSkipped; // Deleted or no longer in the from status by the time their batch was applied
+    int batchesDone;
+    int batchesTotal;
+    long elapsedMillis;
+
+    public StatusTransitionReport(ClaimStatus from, ClaimStatus to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    public StatusTransitionReport copy() {
+        StatusTransitionReport copy = new StatusTransitionReport(from, to);
+        copy.claimsMatched = claimsMatched;
+        copy.claimsMoved = claimsMoved;
+        copy.claimsSkipped = claimsSkipped;
+        copy.batchesDone = batchesDone;
+        copy.batchesTotal = batchesTotal;
+        copy.elapsedMillis = elapsedMillis;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "Batch " + batchesDone + "/" + batchesTotal + ": " + claimsMoved + " of " + claimsMatched +
+                " claim(s) moved " + from + " -> " + to + ", " + claimsSkipped + " skipped, " + elapsedMillis + " ms";
+    }
+}
+
+// Moves every claim matching a rule one step along the workflow. Matching claim IDs are split into batches that run
+// in parallel on a small pool, each through one transitionStatus call. That call re-reads every claim of the batch
+// under the manager's lock and only moves it if it is still in the from status, so an edit made while the job runs
+// is never overwritten by the job's snapshot. A batch is therefore not all-or-nothing: changed claims are skipped
+// and counted. The sharded manager splits each batch by shard and the shards apply their parts independently.
+class StatusTransitionJob {
+    private final ClaimStatus from;
+    private final ClaimStatus to;
+    private Date filedOnOrBefore;
+    private Double minAmount;
+    private Double maxAmount;
+    private int batchSize = 10000;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    public StatusTransitionJob(ClaimStatus from, ClaimStatus to) {
+        if (!from.canMoveTo(to)) {
+            throw new IllegalArgumentException("Claims cannot move from " + from + " to " + to);
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    public StatusTransitionJob filedOnOrBefore(Date date) {
+        this.filedOnOrBefore = date;
+        return this;
+    }
+
+    public StatusTransitionJob amountBetween(Double min, Double max) {
+        this.minAmount = min;
+        this.maxAmount = max;
+        return this;
+    }
+
+    public StatusTransitionJob batchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    // Batches applied at the same time
+    public StatusTransitionJob parallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    // The claims this job would move, as a query the manager can plan with its indexes
+    public ClaimQuery selection() {
+        ClaimQuery query = new ClaimQuery().status(from.label);
+        if (filedOnOrBefore != null) {
+            query.claimDateBetween(null, filedOnOrBefore);
+        }
+        if (minAmount != null || maxAmount != null) {
+            query.amountBetween(minAmount, maxAmount);
+        }
+        return query;
+    }
+
+    public StatusTransitionReport run(ClaimProcessManager manager, Consumer<StatusTransitionReport> progress) {
+        long start = System.nanoTime();
+        StatusTransitionReport report = new StatusTransitionReport(from, to);
+        List<String> matches = new ArrayList<>();
+        for (Claim claim : manager.query(selection())) {
+            matches.add(claim.id);
+        }
+        report.claimsMatched = matches.size();
+        report.batchesTotal = (matches.size() + batchSize - 1) / batchSize;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, report.batchesTotal)));
+        try {
+            List<CompletableFuture<Void>> batches = new ArrayList<>();
+            for (int batch = 0; batch < report.batchesTotal; batch++) {
+                int batchStart = batch * batchSize;
+                List<String> claimIds = matches.subList(batchStart, Math.min(batchStart + batchSize, matches.size()));
+                batches.add(CompletableFuture.runAsync(() -> {
+                    int moved = manager.transitionStatus(claimIds, from, to).size();
+                    synchronized (report) {
+                        report.claimsMoved += moved;
+                        report.claimsSkipped += claimIds.size() - moved;
+                        report.batchesDone++;
+                        report.elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+                        progress.accept(report.copy());
+                    }
+                }, pool));
+            }
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // A failed batch fails the job the way a failed manager call would; the other batches have finished
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+        report.elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        return report;
+    }
+}
+
+// Writes one shard request's arguments after its operation code
+interface ShardRequest {
+    void write(DataOutputStream out) throws IOException;
+}
+
+// Reads the payload of one successful shard reply
+interface ShardReply<T> {
+    T read(DataInputStream in) throws IOException;
+}
+
+// Count and amount totals over the claims matching a query, combinable across shards
+class ClaimAggregate {
+    long count;
+    double totalAmount;
+    double minAmount = Double.POSITIVE_INFINITY;
+    double maxAmount = Double.NEGATIVE_INFINITY;
+
+    public void add(Claim claim) {
+        count++;
+        totalAmount += claim.claimAmount;
+        minAmount = Math.min(minAmount, claim.claimAmount);
+        maxAmount = Math.max(maxAmount, claim.claimAmount);
+    }
+
+    public void merge(ClaimAggregate other) {
+        count += other.count;
+        totalAmount += other.totalAmount;
+        minAmount = Math.min(minAmount, other.minAmount);
+        maxAmount = Math.max(maxAmount, other.maxAmount);
+    }
+
+    @Override
+    public String toString() {
+        return count == 0 ? "0 claims" : count + " claims, total " + totalAmount + ", min " + minAmount +
+                ", max " + maxAmount + ", average " + totalAmount / count;
+    }
+}
+
+// Wire format shared by ClaimShardServer and ShardedClaimProcessManager. Every request is an operation code and
+// its arguments; every reply is OK and a payload, or ERROR and a message. Claims use the archive's record format.
+final class ClaimShardProtocol {
+    static final byte ADD_ALL = 1;
+    static final byte UPDATE = 2;
+    static final byte TRANSITION_STATUS = 3;
+    static final byte DELETE = 4;
+    static final byte GET = 5;
+    static final byte GET_ALL = 6;
+    static final byte GET_IDS = 7;
+    static final byte SEARCH = 8;
+    static final byte RANGE = 9;
+    static final byte QUERY = 10;
+    static final byte EXPLAIN = 11;
+    static final byte AGGREGATE = 12;
+    static final byte SHUTDOWN = 13;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    private ClaimShardProtocol() {
+    }
+
+    static void writeClaim(DataOutputStream out, Claim claim) throws IOException {
+        out.writeBoolean(claim != null);
+        if (claim != null) {
+            out.write(ClaimArchive.encode(claim)); // Already length-prefixed
+        }
+    }
+
+    static Claim readClaim(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        byte[] record = new byte[in.readInt()];
+        in.readFully(record);
+        return ClaimArchive.decode(record);
+    }
+
+    static void writeClaims(DataOutputStream out, Collection<Claim> claims) throws IOException {
+        out.writeInt(claims.size());
+        for (Claim claim : claims) {
+            writeClaim(out, claim);
+        }
+    }
+
+    static List<Claim> readClaims(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Claim> claims = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            claims.add(readClaim(in));
+        }
+        return claims;
+    }
+
+    static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+
+    static void writeQuery(DataOutputStream out, ClaimQuery query) throws IOException {
+        writeString(out, query.status);
+        writeString(out, query.cardNumber);
+        writeString(out, query.insuredPerson);
+        writeDate(out, query.claimDateFrom);
+        writeDate(out, query.claimDateTo);
+        writeDate(out, query.examDateFrom);
+        writeDate(out, query.examDateTo);
+        writeDouble(out, query.minAmount);
+        writeDouble(out, query.maxAmount);
+        out.writeByte(query.sortBy == null ? -1 : query.sortBy.ordinal());
+        out.writeBoolean(query.descending);
+        out.writeInt(query.limit);
+        out.writeBoolean(query.useIndexes);
+    }
+
+    static ClaimQuery readQuery(DataInputStream in) throws IOException {
+        ClaimQuery query = new ClaimQuery().status(readString(in)).cardNumber(readString(in))
+                .insuredPerson(readString(in)).claimDateBetween(readDate(in), readDate(in))
+                .examDateBetween(readDate(in), readDate(in)).amountBetween(readDouble(in), readDouble(in));
+        byte sortBy = in.readByte();
+        query.sortBy(sortBy < 0 ? null : ClaimField.values()[sortBy], in.readBoolean()).limit(in.readInt());
+        return in.readBoolean() ? query : query.withoutIndexes();
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeLong(date == null ? Long.MIN_VALUE : date.getTime());
+    }
+
+    static Date readDate(DataInputStream in) throws IOException {
+        long time = in.readLong();
+        return time == Long.MIN_VALUE ? null : new Date(time);
+    }
+
+    static void writeDouble(DataOutputStream out, Double value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    static Double readDouble(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+}
+
+// One shard: a separate JVM holding its claims in a SimpleClaimProcessManager and answering requests on a
+// loopback socket. Prints "READY <port>" once listening and exits when its standard input closes, so shards
+// started by a router do not outlive it. Requests on a connection are answered in order, and replies are flushed
+// only when no further request is already waiting, so pipelined requests share packets.
+class ClaimShardServer {
+    private final SimpleClaimProcessManager claims = new SimpleClaimProcessManager();
+    private final ServerSocket serverSocket;
+
+    public ClaimShardServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public static void main(String[] args) throws IOException {
+        ClaimShardServer server = new ClaimShardServer(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+        System.out.println("READY " + server.serverSocket.getLocalPort());
+        System.out.flush();
+        Thread watchdog = new Thread(() -> {
+            try {
+                while (System.in.read() != -1) {
+                    // Nothing is sent on standard input; it only signals that the router is still running
+                }
+            } catch (IOException e) {
+                // Treated like end of input
+            }
+            System.exit(0);
+        }, "claim-shard-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+        server.serve();
+    }
+
+    public void serve() throws IOException {
+        while (true) {
+            Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true);
+            Thread handler = new Thread(() -> handle(socket), "claim-shard-connection");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+            while (true) {
+                byte operation;
+                try {
+                    operation = in.readByte();
+                } catch (EOFException e) {
+                    return; // Router closed the connection
+                }
+                try {
+                    respond(operation, in, out);
+                } catch (RuntimeException e) {
+                    out.writeByte(ClaimShardProtocol.ERROR);
+                    out.writeUTF(String.valueOf(e));
+                }
+                if (in.available() == 0) {
+                    out.flush();
+                }
+                if (operation == ClaimShardProtocol.SHUTDOWN) {
+                    out.flush();
+                    System.exit(0);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Reads the arguments, runs the operation and writes the reply. The reply is only started once the
+    // operation has succeeded, so a RuntimeException can still be reported as an ERROR reply.
+    private void respond(byte operation, DataInputStream in, DataOutputStream out) throws IOException {
+        switch (operation) {
+            case ClaimShardProtocol.ADD_ALL: {
+                List<Claim> added = ClaimShardProtocol.readClaims(in);
+                synchronized (claims) {
+                    for (Claim claim : added) {
+                        claims.add(claim);
+                    }
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                break;
+            }
+            case ClaimShardProtocol.UPDATE: {
+                Claim claim = ClaimShardProtocol.readClaim(in);
+                synchronized (claims) {
+                    claims.update(claim);
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                break;
+            }
+            case ClaimShardProtocol.TRANSITION_STATUS: {
+                List<String> ids = ClaimShardProtocol.readStrings(in);
+                ClaimStatus from = ClaimStatus.values()[in.readByte()];
+                ClaimStatus to = ClaimStatus.values()[in.readByte()];
+                List<Claim> moved;
+                synchronized (claims) {
+                    moved = claims.transitionStatus(ids, from, to);
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                ClaimShardProtocol.writeClaims(out, moved);
+                break;
+            }
+            case ClaimShardProtocol.DELETE: {
+                String claimId = in.readUTF();
+                synchronized (claims) {
+                    claims.delete(claimId);
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                break;
+            }
+            case ClaimShardProtocol.GET: {
+                String claimId = in.readUTF();
+                Claim claim;
+                synchronized (claims) {
+                    claim = claims.getOne(claimId);
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                ClaimShardProtocol.writeClaim(out, claim);
+                break;
+            }
+            case ClaimShardProtocol.GET_ALL: {
+                List<Claim> all;
+                synchronized (claims) {
+                    all = claims.getAll();
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                ClaimShardProtocol.writeClaims(out, all);
+                break;
+            }
+            case ClaimShardProtocol.GET_IDS: {
+                List<String> ids;
+                synchronized (claims) {
+                    ids = claims.getAllClaimIds();
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                ClaimShardProtocol.writeStrings(out, ids);
+                break;
+            }
+            case ClaimShardProtocol.SEARCH: {
+                // The router re-ranks candidates from every shard, so it needs the names as well as the IDs
+                String query = in.readUTF();
+                int limit = in.readInt();
+                List<String> names = new ArrayList<>();
+                List<String> ids;
+                synchronized (claims) {
+                    ids = claims.searchByInsuredPerson(query, limit);
+                    for (String claimId : ids) {
+                        names.add(String.valueOf(claims.getOne(claimId).insuredPerson));
+                    }
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                ClaimShardProtocol.writeStrings(out, ids);
+                ClaimShardProtocol.writeStrings(out, names);
+                break;
+            }
+            case ClaimShardProtocol.RANGE: {
+                ClaimField field = ClaimField.values()[in.readByte()];
+                Date from = ClaimShardProtocol.readDate(in);
+                Date to = ClaimShardProtocol.readDate(in);
+                Double min = ClaimShardProtocol.readDouble(in);
+                Double max = ClaimShardProtocol.readDouble(in);
+                List<Claim> range = new ArrayList<>();
+                synchronized (claims) {
+                    Iterator<Claim> matches = field == ClaimField.CLAIM_DATE ? claims.getByClaimDate(from, to)
+                            : field == ClaimField.EXAM_DATE ? claims.getByExamDate(from, to)
+                            : claims.getByClaimAmount(min, max);
+                    matches.forEachRemaining(range::add);
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                ClaimShardProtocol.writeClaims(out, range);
+                break;
+            }
+            case ClaimShardProtocol.QUERY: {
+                ClaimQuery query = ClaimShardProtocol.readQuery(in);
+                List<Claim> matches;
+                synchronized (claims) {
+                    matches = claims.query(query);
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                ClaimShardProtocol.writeClaims(out, matches);
+                break;
+            }
+            case ClaimShardProtocol.EXPLAIN: {
+                ClaimQuery query = ClaimShardProtocol.readQuery(in);
+                String plan;
+                synchronized (claims) {
+                    plan = claims.explain(query);
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                out.writeUTF(plan);
+                break;
+            }
+            case ClaimShardProtocol.AGGREGATE: {
+                ClaimQuery query = ClaimShardProtocol.readQuery(in);
+                ClaimAggregate aggregate = new ClaimAggregate();
+                synchronized (claims) {
+                    for (Claim claim : claims.query(query)) {
+                        aggregate.add(claim);
+                    }
+                }
+                out.writeByte(ClaimShardProtocol.OK);
+                out.writeLong(aggregate.count);
+                out.writeDouble(aggregate.totalAmount);
+                out.writeDouble(aggregate.minAmount);
+                out.writeDouble(aggregate.maxAmount);
+                break;
+            }
+            case ClaimShardProtocol.SHUTDOWN:
+                out.writeByte(ClaimShardProtocol.OK);
+                break;
+            default:
+                throw new IOException("Unknown shard operation " + operation);
+        }
+    }
+}
+
+// Client side of one shard connection. Callers encode their request and queue it without waiting for earlier
+// replies; a writer thread sends queued requests and flushes only when the queue is empty, so requests arriving
+// while the socket is busy share packets. A reader thread hands each reply to the oldest outstanding request.
+class ShardConnection {
+    private static class PendingReply<T> {
+        final ShardReply<T> reply;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        PendingReply(ShardReply<T> reply) {
+            this.reply = reply;
+        }
+    }
+
+    private static final byte[] CLOSE = new byte[0];
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final ArrayDeque<PendingReply<?>> pending = new ArrayDeque<>();
+    private final BlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>();
+    private volatile IOException failure;
+
+    public ShardConnection(InetSocketAddress address) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        Thread writer = new Thread(this::writeRequests, "claim-shard-writer-" + address.getPort());
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(this::readReplies, "claim-shard-reader-" + address.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public <T> CompletableFuture<T> send(byte operation, ShardRequest request, ShardReply<T> reply) {
+        PendingReply<T> next = new PendingReply<>(reply);
+        // Encoded by the caller, so claims can be changed again as soon as this returns
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream encoded = new DataOutputStream(bytes);
+            encoded.writeByte(operation);
+            request.write(encoded);
+        } catch (IOException e) {
+            next.future.completeExceptionally(new UncheckedIOException(e));
+            return next.future;
+        }
+        synchronized (pending) {
+            if (failure != null) {
+                next.future.completeExceptionally(new UncheckedIOException(failure));
+                return next.future;
+            }
+            // Both queues take requests in the same order, which is the order the shard replies in
+            pending.add(next);
+            outgoing.add(bytes.toByteArray());
+        }
+        return next.future;
+    }
+
+    // Closes the socket once every request queued so far has been sent
+    public void close() {
+        outgoing.add(CLOSE);
+    }
+
+    private void writeRequests() {
+        try {
+            while (true) {
+                byte[] request = outgoing.take();
+                do {
+                    if (request == CLOSE) {
+                        out.flush();
+                        socket.close();
+                        return;
+                    }
+                    out.write(request);
+                    request = outgoing.poll();
+                } while (request != null);
+                out.flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("Shard writer interrupted"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readReplies() {
+        try {
+            while (true) {
+                byte status = in.readByte();
+                PendingReply<Object> next;
+                synchronized (pending) {
+                    next = (PendingReply<Object>) pending.poll();
+                }
+                if (next == null) {
+                    throw new IOException("Reply from shard without a request");
+                }
+                if (status == ClaimShardProtocol.ERROR) {
+                    next.future.completeExceptionally(new IllegalStateException("Shard error: " + in.readUTF()));
+                } else {
+                    next.future.complete(next.reply.read(in));
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        List<PendingReply<?>> abandoned;
+        synchronized (pending) {
+            if (failure == null) {
+                failure = e;
+            }
+            abandoned = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (PendingReply<?> reply : abandoned) {
+            reply.future.completeExceptionally(new UncheckedIOException(failure));
+        }
+        try {
+            socket.close();
+        } catch (IOException closeError) {
+            closeError.printStackTrace();
+        }
+    }
+}
+
+// Claims hash-partitioned by ID across ClaimShardServer processes. Writes are pipelined without waiting for the
+// shard's reply; reads through this router still see them, since each shard answers requests in order. The first
+// write a shard rejects is remembered, and saveTo then refuses to write the shards back over the stored claims.
+// getAll, queries, range scans, searches and aggregates go to every shard at once and the replies are merged.
+// transitionStatus checks each claim on its own shard under that shard's lock; the shards of one batch apply
+// their parts independently. Duplicate fingerprints are kept here rather than in the shards, so every claim written
+// through this router is checked against all of them.
+class ShardedClaimProcessManager implements ClaimProcessManager {
+    private static final int IMPORT_BATCH_SIZE = 10000;
+
+    private final List<ShardConnection> shards = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+    private final ClaimDuplicateDetector duplicateDetector; // Optional
+    private volatile String writeFailure; // First shard write that failed, null while every write succeeded
+
+    public ShardedClaimProcessManager(List<InetSocketAddress> addresses, ClaimDuplicateDetector duplicateDetector) {
+        this.duplicateDetector = duplicateDetector;
+        try {
+            for (InetSocketAddress address : addresses) {
+                shards.add(new ShardConnection(address));
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Starts shardCount ClaimShardServer processes on this machine from the current class path and connects to them.
+    // close() stops them again.
+    public static ShardedClaimProcessManager startLocal(int shardCount, String maxHeap,
+                                                        ClaimDuplicateDetector duplicateDetector) {
+        List<Process> started = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        try {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int i = 0; i < shardCount; i++) {
+                Process process = new ProcessBuilder(java, "-Xmx" + maxHeap, "-cp", System.getProperty("java.class.path"),
+                        "ClaimShardServer", "0").redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                started.add(process);
+            }
+            for (Process process : started) {
+                BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                String ready = output.readLine();
+                if (ready == null || !ready.startsWith("READY ")) {
+                    throw new IOException("Claim shard did not start: " + ready);
+                }
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(ready.substring(6))));
+            }
+            ShardedClaimProcessManager manager = new ShardedClaimProcessManager(addresses, duplicateDetector);
+            manager.processes.addAll(started);
+            return manager;
+        } catch (IOException | RuntimeException e) {
+            for (Process process : started) {
+                process.destroy();
+            }
+            throw e instanceof IOException ? new UncheckedIOException((IOException) e) : (RuntimeException) e;
+        }
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    // Copies every claim of source into the shards in batches of one request per shard and waits until every shard
+    // has stored its batches; returns how many. Throws IllegalStateException if a shard failed to store one.
+    public int importFrom(ClaimProcessManager source) {
+        List<Claim> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+        List<CompletableFuture<Void>> replies = new ArrayList<>();
+        int[] count = new int[1];
+        source.forEach(claim -> {
+            batch.add(claim);
+            count[0]++;
+            if (batch.size() == IMPORT_BATCH_SIZE) {
+                replies.add(addAll(batch));
+                batch.clear();
+            }
+        });
+        replies.add(addAll(batch));
+        CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).exceptionally(error -> null).join();
+        if (writeFailure != null) {
+            throw new IllegalStateException("Claims were not loaded into every shard: " + writeFailure);
+        }
+        return count[0];
+    }
+
+    // Makes target hold exactly the claims now in the shards. Only claims that differ are written, so unchanged
+    // claims stay where they are, archived ones included. Returns how many claims were added, changed or deleted.
+    // A shard that rejected a write may be missing claims, and this would delete them from target, so once any write
+    // has failed this throws IllegalStateException without changing target.
+    public int saveTo(ClaimProcessManager target) {
+        Map<String, Claim> remaining = new HashMap<>();
+        // Each shard replies in order, so every earlier write has been answered once its claims have arrived
+        forEach(claim -> remaining.put(claim.id, claim));
+        if (writeFailure != null) {
+            throw new IllegalStateException("A claim shard write failed, so the shards were not saved: " + writeFailure);
+        }
+        List<Claim> changed = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        target.forEach(stored -> {
+            Claim claim = remaining.remove(stored.id);
+            if (claim == null) {
+                deleted.add(stored.id);
+            } else if (!sameRecord(claim, stored)) {
+                changed.add(claim);
+            }
+        });
+        for (String claimId : deleted) {
+            target.delete(claimId);
+        }
+        for (Claim claim : changed) {
+            target.update(claim);
+        }
+        // In claim date order, so a partitioned target fills one month at a time
+        List<Claim> added = new ArrayList<>(remaining.values());
+        added.sort(Comparator.comparing(claim -> claim.claimDate, Comparator.nullsFirst(Comparator.naturalOrder())));
+        for (Claim claim : added) {
+            target.add(claim);
+        }
+        return deleted.size() + changed.size() + added.size();
+    }
+
+    // One ADD_ALL request per shard, not waited for; the returned future completes once every shard has replied
+    public CompletableFuture<Void> addAll(List<Claim> claims) {
+        if (duplicateDetector != null) {
+            for (Claim claim : claims) {
+                duplicateDetector.register(claim);
+            }
+        }
+        List<List<Claim>> byShard = groupByShard(claims, claim -> claim.id);
+        List<CompletableFuture<Void>> replies = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            List<Claim> shardClaims = byShard.get(shard);
+            if (!shardClaims.isEmpty()) {
+                replies.add(write(shard, ClaimShardProtocol.ADD_ALL, out -> ClaimShardProtocol.writeClaims(out, shardClaims)));
+            }
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]));
+    }
+
+    public CompletableFuture<Claim> getOneAsync(String claimId) {
+        return shards.get(shardFor(claimId)).send(ClaimShardProtocol.GET, out -> out.writeUTF(claimId),
+                ClaimShardProtocol::readClaim);
+    }
+
+    public ClaimAggregate aggregate(ClaimQuery query) {
+        ClaimAggregate total = new ClaimAggregate();
+        for (ClaimAggregate part : scatter(ClaimShardProtocol.AGGREGATE, out -> ClaimShardProtocol.writeQuery(out, query), in -> {
+            ClaimAggregate aggregate = new ClaimAggregate();
+            aggregate.count = in.readLong();
+            aggregate.totalAmount = in.readDouble();
+            aggregate.minAmount = in.readDouble();
+            aggregate.maxAmount = in.readDouble();
+            return aggregate;
+        })) {
+            total.merge(part);
+        }
+        return total;
+    }
+
+    // Stops shards this router started and closes the connections
+    public void close() {
+        for (int shard = 0; shard < shards.size() && !processes.isEmpty(); shard++) {
+            try {
+                shards.get(shard).send(ClaimShardProtocol.SHUTDOWN, out -> { }, in -> null).join();
+            } catch (CompletionException e) {
+                // The shard is already gone
+            }
+        }
+        for (ShardConnection shard : shards) {
+            shard.close();
+        }
+        for (Process process : processes) {
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroy();
+                }
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void add(Claim claim) {
+        addAll(Collections.singletonList(claim));
+    }
+
+    // Not checked against the shard, so a claim that no longer exists is registered until it is deleted again
+    @Override
+    public void update(Claim claim) {
+        if (duplicateDetector != null) {
+            duplicateDetector.register(claim);
+        }
+        write(shardFor(claim.id), ClaimShardProtocol.UPDATE, out -> ClaimShardProtocol.writeClaim(out, claim));
+    }
+
+    @Override
+    public List<Claim> transitionStatus(List<String> claimIds, ClaimStatus from, ClaimStatus to) {
+        List<List<String>> byShard = groupByShard(claimIds, claimId -> claimId);
+        List<CompletableFuture<List<Claim>>> replies = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            List<String> ids = byShard.get(shard);
+            if (!ids.isEmpty()) {
+                replies.add(shards.get(shard).send(ClaimShardProtocol.TRANSITION_STATUS, out -> {
+                    ClaimShardProtocol.writeStrings(out, ids);
+                    out.writeByte(from.ordinal());
+                    out.writeByte(to.ordinal());
+                }, ClaimShardProtocol::readClaims));
+            }
+        }
+        List<Claim> moved = new ArrayList<>();
+        for (CompletableFuture<List<Claim>> reply : replies) {
+            moved.addAll(join(reply));
+        }
+        if (duplicateDetector != null && duplicateDetector.usesAny(EnumSet.of(ClaimField.STATUS))) {
+            for (Claim claim : moved) {
+                Claim after = claim.copy();
+                after.status = to.label;
+                duplicateDetector.register(after);
+            }
+        }
+        return moved;
+    }
+
+    @Override
+    public void delete(String claimId) {
+        if (duplicateDetector != null) {
+            duplicateDetector.unregister(claimId);
+        }
+        write(shardFor(claimId), ClaimShardProtocol.DELETE, out -> out.writeUTF(claimId));
+    }
+
+    @Override
+    public Claim getOne(String claimId) {
+        return join(getOneAsync(claimId));
+    }
+
+    @Override
+    public List<Claim> getAll() {
+        List<Claim> all = new ArrayList<>();
+        for (List<Claim> part : scatter(ClaimShardProtocol.GET_ALL, out -> { }, ClaimShardProtocol::readClaims)) {
+            all.addAll(part);
+        }
+        return all;
+    }
+
+    // One shard at a time, so only one shard's claims are held here at once
+    @Override
+    public void forEach(Consumer<Claim> action) {
+        for (ShardConnection shard : shards) {
+            join(shard.send(ClaimShardProtocol.GET_ALL, out -> { }, ClaimShardProtocol::readClaims)).forEach(action);
+        }
+    }
+
+    @Override
+    public List<String> getAllClaimIds() {
+        List<String> ids = new ArrayList<>();
+        for (List<String> part : scatter(ClaimShardProtocol.GET_IDS, out -> { }, ClaimShardProtocol::readStrings)) {
+            ids.addAll(part);
+        }
+        return ids;
+    }
+
+    // Each shard returns its best matches with their names, and a small index over those ranks them together
+    @Override
+    public List<String> searchByInsuredPerson(String query, int limit) {
+        NameSearchIndex candidates = new NameSearchIndex();
+        for (String[][] part : scatter(ClaimShardProtocol.SEARCH, out -> {
+            out.writeUTF(query);
+            out.writeInt(limit);
+        }, in -> new String[][]{ClaimShardProtocol.readStrings(in).toArray(new String[0]),
+                ClaimShardProtocol.readStrings(in).toArray(new String[0])})) {
+            for (int i = 0; i < part[0].length; i++) {
+                candidates.put(part[0][i], part[1][i]);
+            }
+        }
+        return candidates.search(query, limit);
+    }
+
+    @Override
+    public Iterator<Claim> getByClaimDate(Date from, Date to) {
+        return range(ClaimField.CLAIM_DATE, from, to, null, null, Comparator.comparing(claim -> claim.claimDate));
+    }
+
+    @Override
+    public Iterator<Claim> getByExamDate(Date from, Date to) {
+        return range(ClaimField.EXAM_DATE, from, to, null, null, Comparator.comparing(claim -> claim.examDate));
+    }
+
+    @Override
+    public Iterator<Claim> getByClaimAmount(Double min, Double max) {
+        return range(ClaimField.CLAIM_AMOUNT, null, null, min, max, Comparator.comparingDouble(claim -> claim.claimAmount));
+    }
+
+    // Every shard applies the query's sort and limit, so merging their results and finishing again is exact
+    @Override
+    public List<Claim> query(ClaimQuery query) {
+        List<Claim> matches = new ArrayList<>();
+        for (List<Claim> part : scatter(ClaimShardProtocol.QUERY, out -> ClaimShardProtocol.writeQuery(out, query),
+                ClaimShardProtocol::readClaims)) {
+            matches.addAll(part);
+        }
+        return query.finish(matches);
+    }
+
+    @Override
+    public String explain(ClaimQuery query) {
+        List<String> plans = scatter(ClaimShardProtocol.EXPLAIN, out -> ClaimShardProtocol.writeQuery(out, query),
+                in -> in.readUTF());
+        StringBuilder explanation = new StringBuilder("Scatter to " + shards.size() + " shards, then merge");
+        for (int shard = 0; shard < plans.size(); shard++) {
+            explanation.append("; shard ").append(shard).append(": ").append(plans.get(shard));
+        }
+        return explanation.toString();
+    }
+
+    private Iterator<Claim> range(ClaimField field, Date from, Date to, Double min, Double max, Comparator<Claim> order) {
+        List<Iterator<Claim>> ranges = new ArrayList<>();
+        for (List<Claim> part : scatter(ClaimShardProtocol.RANGE, out -> {
+            out.writeByte(field.ordinal());
+            ClaimShardProtocol.writeDate(out, from);
+            ClaimShardProtocol.writeDate(out, to);
+            ClaimShardProtocol.writeDouble(out, min);
+            ClaimShardProtocol.writeDouble(out, max);
+        }, ClaimShardProtocol::readClaims)) {
+            ranges.add(part.iterator());
+        }
+        return PartitionedClaimProcessManager.mergeSorted(ranges, order);
+    }
+
+    // Sends the request to every shard before waiting for any reply, so the shards work on it at the same time
+    private <T> List<T> scatter(byte operation, ShardRequest request, ShardReply<T> reply) {
+        List<CompletableFuture<T>> replies = new ArrayList<>();
+        for (ShardConnection shard : shards) {
+            replies.add(shard.send(operation, request, reply));
+        }
+        List<T> results = new ArrayList<>();
+        for (CompletableFuture<T> next : replies) {
+            results.add(join(next));
+        }
+        return results;
+    }
+
+    private static boolean sameRecord(Claim a, Claim b) {
+        try {
+            return Arrays.equals(ClaimArchive.encode(a), ClaimArchive.encode(b));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Every write goes through here, so a failed one is recorded before any later reply from that shard is read
+    private CompletableFuture<Void> write(int shard, byte operation, ShardRequest request) {
+        CompletableFuture<Void> reply = shards.get(shard).send(operation, request, in -> null);
+        return reply.whenComplete((result, error) -> {
+            if (error != null) {
+                if (writeFailure == null) {
+                    writeFailure = "shard " + shard + ": " + error.getMessage();
+                }
+                System.out.println("Error writing to claim shard " + shard + ": " + error.getMessage());
+            }
+        });
+    }
+
+    private <T> List<List<T>> groupByShard(List<T> items, Function<T, String> idOf) {
+        List<List<T>> byShard = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            byShard.add(new ArrayList<>());
         }
+        for (T item : items) {
+            byShard.get(shardFor(idOf.apply(item))).add(item);
+        }
+        return byShard;
     }
 
-    public static void saveInsuranceCards(List<InsuranceCard> cards, String filePath) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            for (InsuranceCard card : cards) {
-                writer.write(card.cardNumber + "," + card.cardHolder + "," + card.policyOwner + "," +
-                        DATE_FORMAT.format(card.expirationDate));
-                writer.newLine();
+    private int shardFor(String claimId) {
+        int hash = claimId.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), shards.size());
+    }
+
+    // Shard failures surface as the unchecked exceptions the other managers use for storage errors
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            throw e;
         }
     }
-
-
 }
 
 public class Main {
     private static ClaimProcessManager claimManager;
-    private static List<Customer> customers;
-    private static List<InsuranceCard> insuranceCards; // Add this variable
+    private static PartitionedClaimProcessManager claimStore; // Monthly claim files behind claimManager
+    private static TieredClaimProcessManager claimTiers; // Moves old Done claims out of claimStore into an archive
+    private static ShardedClaimProcessManager claimShards; // Serves claimStore's claims when started with --shards N
+    private static ClaimDuplicateDetector duplicateDetector; // Fingerprints of the claims currently in memory
+    private static DocumentStore documentStore; // Claim document files, stored once per distinct content
+    private static VersionedClaimProcessManager claimVersions; // Records every claim change for point-in-time views
+    private static CustomerGraph customers; // Customers, insurance cards and policy holder links
+    private static NameSearchIndex customerNameIndex; // Lookup of customer IDs by partial name
 
     public static void main(String[] args) {
-        insuranceCards = FileManager.loadInsuranceCards("D:\\untitled\\src\\insurance_cards.txt"); // Load insurance cards first
+        customers = new CustomerGraph();
+        for (InsuranceCard card : FileManager.loadInsuranceCards("D:\\untitled\\src\\insurance_cards.txt")) { // Load insurance cards first
+            customers.addCard(card);
+        }
 
-        customers = FileManager.loadCustomers("D:\\untitled\\src\\customers.txt"); // Pass insurance cards
-        List<Claim> claims = FileManager.loadClaims("D:\\untitled\\src\\claims.txt");
+        customerNameIndex = new NameSearchIndex();
+        for (Customer customer : FileManager.loadCustomers("D:\\untitled\\src\\customers.txt")) {
+            if (customers.addCustomer(customer)) {
+                customerNameIndex.put(customer.id, customer.fullName);
+            }
+        }
+        if (new File("D:\\untitled\\src\\dependents.txt").exists()) {
+            FileManager.loadDependents("D:\\untitled\\src\\dependents.txt", customers);
+        }
 
-        claimManager = new SimpleClaimProcessManager();
-        for (Claim claim : claims) {
-            claimManager.add(claim);
+        duplicateDetector = new ClaimDuplicateDetector(ClaimDuplicateDetector.defaultRules());
+        int shardCount = args.length >= 2 && args[0].equals("--shards") ? Integer.parseInt(args[1]) : 0;
+        // Claims live in monthly partitions; only the recent months are read now, older ones on first use.
+        // In sharded mode the shard router registers every claim for duplicate checks instead.
+        claimStore = new PartitionedClaimProcessManager("D:\\untitled\\src\\claims", 12, 30 * 60 * 1000L,
+                shardCount > 0 ? null : duplicateDetector);
+        if (claimStore.isEmpty()) {
+            claimStore.importClaims("D:\\untitled\\src\\claims.txt");
+        }
+        ClaimProcessManager storedClaims = claimStore;
+        try {
+            claimTiers = new TieredClaimProcessManager(claimStore, new ClaimArchive("D:\\untitled\\src\\claims\\archive"), 90);
+            storedClaims = claimTiers;
+        } catch (UncheckedIOException e) {
+            System.out.println("Error opening claim archive, archiving is disabled: " + e.getMessage());
+        }
+        if (shardCount > 0) {
+            // The stored claims are served from shard processes on this machine and written back on exit
+            claimShards = ShardedClaimProcessManager.startLocal(shardCount, "1g", duplicateDetector);
+            try {
+                System.out.println(claimShards.importFrom(storedClaims) + " claims loaded into " + shardCount + " shards.");
+            } catch (RuntimeException e) {
+                // Nothing has been changed yet, so stopping here loses nothing
+                System.out.println("Error loading claims into shards: " + e.getMessage());
+                System.out.println("Sharded mode aborted; start without --shards to use the claim files directly.");
+                claimShards.close();
+                System.exit(1);
+            }
+            claimManager = claimShards;
+        } else {
+            claimStore.preloadRecent(3);
+            claimManager = storedClaims;
+        }
+        try {
+            // Same-day changes older than 30 days are squashed, checked hourly and done once the log has grown
+            ClaimHistory history = new ClaimHistory("D:\\untitled\\src\\claims\\history.log");
+            history.startBackgroundCompaction(60 * 60 * 1000L, 30L * 24 * 60 * 60 * 1000);
+            claimVersions = new VersionedClaimProcessManager(claimManager, history);
+            claimManager = claimVersions;
+        } catch (UncheckedIOException e) {
+            System.out.println("Error opening claim history, history is disabled: " + e.getMessage());
+        }
+        try {
+            documentStore = new DocumentStore("D:\\untitled\\src\\documents");
+        } catch (UncheckedIOException e) {
+            System.out.println("Error opening document store, documents are disabled: " + e.getMessage());
         }
 
         // Simple text-based UI
@@ -377,13 +5244,32 @@ public class Main {
                     manageCustomers(customers);
                     break;
                 case "3":
-                    manageInsuranceCards(insuranceCards);
+                    manageInsuranceCards(customers);
                     break;
                 case "4":
                     // Save data to files and exit
-                    FileManager.saveCustomers(customers, "D:\\untitled\\src\\customers.txt");
-                    FileManager.saveClaims(claimManager.getAll(), "D:\\untitled\\src\\claims.txt");
-                    FileManager.saveInsuranceCards(insuranceCards, "D:\\untitled\\src\\insurance_cards.txt");
+                    FileManager.saveCustomers(customers.getAllCustomers(), "D:\\untitled\\src\\customers.txt");
+                    FileManager.saveDependents(customers.getAllCustomers(), "D:\\untitled\\src\\dependents.txt");
+                    if (claimShards != null) {
+                        try {
+                            claimShards.saveTo(storedClaims);
+                        } catch (RuntimeException e) {
+                            System.out.println("Error saving claims from shards, the claim files were left unchanged: "
+                                    + e.getMessage());
+                        }
+                        claimShards.close();
+                    }
+                    claimStore.save();
+                    if (claimTiers != null) {
+                        claimTiers.close();
+                    }
+                    if (documentStore != null) {
+                        documentStore.close();
+                    }
+                    if (claimVersions != null) {
+                        claimVersions.close();
+                    }
+                    FileManager.saveInsuranceCards(customers.getAllCards(), "D:\\untitled\\src\\insurance_cards.txt");
                     System.out.println("Data saved. Exiting...");
                     System.exit(0);
                 default:
@@ -403,7 +5289,17 @@ public class Main {
             System.out.println("1. Add Claim");
             System.out.println("2. Delete Claim");
             System.out.println("3. View All Claims");
-            System.out.println("4. Back to Main Menu");
+            System.out.println("4. Search Claims by Insured Person");
+            System.out.println("5. View Claims by Date or Amount Range");
+            System.out.println("6. Archive Done Claims");
+            System.out.println("7. Find Duplicate Claims");
+            System.out.println("8. Attach Document to Claim");
+            System.out.println("9. Export Claim Document");
+            System.out.println("10. Query Claims");
+            System.out.println("11. View Claim as of Date");
+            System.out.println("12. Bulk Status Change");
+            System.out.println("13. Update Claim");
+            System.out.println("14. Back to Main Menu");
             System.out.print("Enter your choice: ");
             String choice = scanner.nextLine();
 
@@ -418,6 +5314,36 @@ public class Main {
                     viewAllClaims();
                     break;
                 case "4":
+                    searchClaimsByInsuredPerson();
+                    break;
+                case "5":
+                    viewClaimsInRange();
+                    break;
+                case "6":
+                    archiveDoneClaims();
+                    break;
+                case "7":
+                    findDuplicateClaims();
+                    break;
+                case "8":
+                    attachDocument();
+                    break;
+                case "9":
+                    exportDocument();
+                    break;
+                case "10":
+                    queryClaims();
+                    break;
+                case "11":
+                    viewClaimAsOf();
+                    break;
+                case "12":
+                    bulkStatusChange();
+                    break;
+                case "13":
+                    updateClaim();
+                    break;
+                case "14":
                     return;
                 default:
                     System.out.println("Invalid choice. Please enter a valid option.");
@@ -434,7 +5360,7 @@ public class Main {
             id = scanner.nextLine().trim();
             if (!id.matches("f-\\d{10}")) {
                 System.out.println("Error: Invalid claim ID format. Please enter in the format f-numbers;10 numbers.");
-            } else if (isDuplicateClaimId(id, claimManager.getAll())) {
+            } else if (isDuplicateClaimId(id)) {
                 System.out.println("Error: Claim with the same ID already exists.");
                 id = null; // Reset id to trigger re-entry of claim ID
             }
@@ -453,10 +5379,26 @@ public class Main {
         } while (!isValidCardNumber(cardNumber));
 
 
-        // Find the related customer
+        System.out.print("Enter claim date (YYYY-MM-DD): ");
+        Date claimDate = parseDate(scanner.nextLine());
+
+        System.out.print("Enter exam date (YYYY-MM-DD): ");
+        Date examDate = parseDate(scanner.nextLine());
 
+        System.out.print("Enter claim amount: ");
+        double claimAmount = readAmount(scanner, "Enter claim amount: ");
 
-        Claim newClaim = new Claim(id, new Date(), insuredPerson, cardNumber, new Date(), null, 0, "New", "");
+        System.out.print("Enter receiver banking info: ");
+        String receiverBankingInfo = readBankingInfo(scanner, "Enter receiver banking info: ");
+
+        // Documents are attached afterwards through Attach Document
+        Claim newClaim = new Claim(id, claimDate, insuredPerson, cardNumber, examDate, null, claimAmount, "New",
+                receiverBankingInfo);
+
+        // Flag, but still file, claims that look like one already in the system; checked once every field is known
+        for (Map.Entry<String, List<String>> match : duplicateDetector.check(newClaim).entrySet()) {
+            System.out.println("Warning: possible duplicate (" + match.getKey() + ") of claim(s) " + match.getValue());
+        }
 
         claimManager.add(newClaim);
 
@@ -465,6 +5407,30 @@ public class Main {
 
 
 
+    // Repeats prompt until a number is entered
+    private static double readAmount(Scanner scanner, String prompt) {
+        while (true) {
+            try {
+                return Double.parseDouble(scanner.nextLine().trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Invalid amount.");
+                System.out.print(prompt);
+            }
+        }
+    }
+
+    // Banking info is stored in a comma-separated claim row, so the separators cannot be part of it
+    private static String readBankingInfo(Scanner scanner, String prompt) {
+        while (true) {
+            String input = scanner.nextLine();
+            if (input.indexOf(',') < 0 && input.indexOf(';') < 0) {
+                return input;
+            }
+            System.out.println("Error: Banking info cannot contain ',' or ';'.");
+            System.out.print(prompt);
+        }
+    }
+
     private static String getInputNotBlank(Scanner scanner, String fieldName) {
         String input;
         do {
@@ -477,21 +5443,20 @@ public class Main {
         } while (input.isEmpty());
         return input;
     }
-    private static boolean isDuplicateClaimId(String claimId, List<Claim> claims) {
-        for (Claim claim : claims) {
-            if (claim.id.equals(claimId)) {
-                return true;
-            }
-        }
-        return false;
+    // Looks the ID up directly so the check does not have to read every claim partition
+    private static boolean isDuplicateClaimId(String claimId) {
+        return claimManager.getOne(claimId) != null;
     }
 
 
 
 
 
-    private static boolean isValidStatus(String status) {
-        return status.equalsIgnoreCase("New") || status.equalsIgnoreCase("Processing") || status.equalsIgnoreCase("Done");
+    // A claim keeps its status or moves one step along the workflow; one with an unknown status may take any known one
+    private static boolean isValidStatusChange(String current, String next) {
+        ClaimStatus from = ClaimStatus.parse(current);
+        ClaimStatus to = ClaimStatus.parse(next);
+        return to != null && (from == null || from == to || from.canMoveTo(to));
     }
     private static boolean containsDigits(String str) {
         for (char c : str.toCharArray()) {
@@ -515,6 +5480,9 @@ public class Main {
         }
 
         claimManager.delete(id);
+        if (documentStore != null) {
+            documentStore.releaseClaim(id);
+        }
 
         System.out.println("Claim deleted successfully.");
     }
@@ -540,17 +5508,296 @@ public class Main {
         }
     }
 
+    private static void searchClaimsByInsuredPerson() {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Enter insured person name (partial names and typos are fine): ");
+        String query = scanner.nextLine();
+
+        List<String> claimIds = claimManager.searchByInsuredPerson(query, 20);
+        if (claimIds.isEmpty()) {
+            System.out.println("No matching claims found.");
+            return;
+        }
+        for (String claimId : claimIds) {
+            Claim claim = claimManager.getOne(claimId);
+            System.out.println("ID: " + claim.id + ", Insured Person: " + claim.insuredPerson + ", Status: " + claim.status);
+        }
+    }
+
+    private static void viewClaimsInRange() {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.println("Range on: 1. Claim Date  2. Exam Date  3. Claim Amount");
+        System.out.print("Enter your choice: ");
+        String choice = scanner.nextLine().trim();
+
+        Iterator<Claim> matches;
+        switch (choice) {
+            case "1":
+            case "2":
+                System.out.print("Enter start date (YYYY-MM-DD): ");
+                Date from = parseDate(scanner.nextLine());
+                System.out.print("Enter end date (YYYY-MM-DD): ");
+                Date to = parseDate(scanner.nextLine());
+                matches = choice.equals("1") ? claimManager.getByClaimDate(from, to) : claimManager.getByExamDate(from, to);
+                break;
+            case "3":
+                try {
+                    System.out.print("Enter minimum amount: ");
+                    double min = Double.parseDouble(scanner.nextLine().trim());
+                    System.out.print("Enter maximum amount (blank for no limit): ");
+                    String maxInput = scanner.nextLine().trim();
+                    matches = claimManager.getByClaimAmount(min, maxInput.isEmpty() ? null : Double.parseDouble(maxInput));
+                } catch (NumberFormatException e) {
+                    System.out.println("Error: Amount must be a number.");
+                    return;
+                }
+                break;
+            default:
+                System.out.println("Invalid choice.");
+                return;
+        }
+
+        int count = 0;
+        while (matches.hasNext()) {
+            Claim claim = matches.next();
+            System.out.println("ID: " + claim.id + ", Claim Date: " + claim.claimDate + ", Exam Date: " + claim.examDate +
+                    ", Amount: " + claim.claimAmount + ", Status: " + claim.status);
+            count++;
+        }
+        System.out.println(count + " claim(s) found.");
+    }
+
+    private static void archiveDoneClaims() {
+        if (claimTiers == null || claimShards != null) {
+            System.out.println("Claim archive is not available.");
+            return;
+        }
+        int archived = claimTiers.archiveDoneClaims();
+        System.out.println(archived + " claim(s) archived, " + claimTiers.archivedCount() + " in the archive.");
+    }
+
+    private static void findDuplicateClaims() {
+        List<DuplicateGroup> groups = duplicateDetector.findDuplicates(claimManager.getAll());
+        if (groups.isEmpty()) {
+            System.out.println("No duplicate claims found.");
+            return;
+        }
+        for (DuplicateGroup group : groups) {
+            System.out.println(group.ruleName + ": " + String.join(", ", group.claimIds));
+        }
+        System.out.println(groups.size() + " group(s) of possible duplicates found.");
+    }
+
+    private static void attachDocument() {
+        if (documentStore == null) {
+            System.out.println("Document store is not available.");
+            return;
+        }
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Enter claim ID: ");
+        Claim stored = claimManager.getOne(scanner.nextLine().trim());
+        if (stored == null) {
+            System.out.println("Claim not found.");
+            return;
+        }
+        Claim claim = stored.copy(); // Edit a copy so the claim history can see what changed
+
+        System.out.print("Enter path of the document file: ");
+        File source = new File(scanner.nextLine().trim());
+        if (!source.isFile()) {
+            System.out.println("Error: File not found.");
+            return;
+        }
+
+        // Format: cardNumber_claimId_fileName, like the documents already listed in claims.txt. Claim rows separate
+        // fields with ',' and documents with ';', so those are replaced in the file name.
+        String documentName = claim.cardNumber + "_" + claim.id + "_" + source.getName().replace(',', '_').replace(';', '_');
+        try {
+            documentStore.attach(claim.id, documentName, source.getPath());
+        } catch (IOException e) {
+            System.out.println("Error storing document: " + e.getMessage());
+            return;
+        }
+
+        List<String> documents = claim.documents == null ? new ArrayList<>() : new ArrayList<>(claim.documents);
+        if (!documents.contains(documentName)) {
+            documents.add(documentName);
+        }
+        claim.documents = documents;
+        claimManager.update(claim);
+
+        System.out.println("Document " + documentName + " attached successfully.");
+    }
+
+    private static void exportDocument() {
+        if (documentStore == null) {
+            System.out.println("Document store is not available.");
+            return;
+        }
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Enter claim ID: ");
+        String claimId = scanner.nextLine().trim();
+        System.out.print("Enter document name: ");
+        String documentName = scanner.nextLine().trim();
+        if (!documentStore.contains(claimId, documentName)) {
+            System.out.println("Document not found.");
+            return;
+        }
+
+        System.out.print("Enter destination file path: ");
+        String destination = scanner.nextLine().trim();
+        try (FileOutputStream out = new FileOutputStream(destination)) {
+            long bytes = documentStore.transferTo(claimId, documentName, out.getChannel());
+            System.out.println(bytes + " bytes written to " + destination);
+        } catch (IOException e) {
+            System.out.println("Error exporting document: " + e.getMessage());
+        }
+    }
+
+    private static void queryClaims() {
+        Scanner scanner = new Scanner(System.in);
+        ClaimQuery query = new ClaimQuery();
+
+        System.out.println("Leave any condition blank to skip it.");
+        System.out.print("Status (New, Processing, Done): ");
+        String status = scanner.nextLine().trim();
+        if (!status.isEmpty()) {
+            query.status(status);
+        }
+        System.out.print("Card number: ");
+        String cardNumber = scanner.nextLine().trim();
+        if (!cardNumber.isEmpty()) {
+            query.cardNumber(cardNumber);
+        }
+        System.out.print("Insured person: ");
+        String insuredPerson = scanner.nextLine().trim();
+        if (!insuredPerson.isEmpty()) {
+            query.insuredPerson(insuredPerson);
+        }
+        System.out.print("Claim date from (YYYY-MM-DD): ");
+        String from = scanner.nextLine().trim();
+        System.out.print("Claim date to (YYYY-MM-DD): ");
+        String to = scanner.nextLine().trim();
+        if (!from.isEmpty() || !to.isEmpty()) {
+            query.claimDateBetween(from.isEmpty() ? null : parseDate(from), to.isEmpty() ? null : parseDate(to));
+        }
+        try {
+            System.out.print("Minimum amount: ");
+            String min = scanner.nextLine().trim();
+            System.out.print("Maximum amount: ");
+            String max = scanner.nextLine().trim();
+            if (!min.isEmpty() || !max.isEmpty()) {
+                query.amountBetween(min.isEmpty() ? null : Double.parseDouble(min), max.isEmpty() ? null : Double.parseDouble(max));
+            }
+            System.out.print("Maximum number of results: ");
+            String limit = scanner.nextLine().trim();
+            if (!limit.isEmpty()) {
+                query.limit(Integer.parseInt(limit));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Amounts and limit must be numbers.");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        query.sortBy(ClaimField.CLAIM_DATE, false);
+
+        System.out.println("Plan: " + claimManager.explain(query));
+        List<Claim> results = claimManager.query(query);
+        for (Claim claim : results) {
+            System.out.println("ID: " + claim.id + ", Claim Date: " + claim.claimDate + ", Insured Person: " + claim.insuredPerson +
+                    ", Card Number: " + claim.cardNumber + ", Amount: " + claim.claimAmount + ", Status: " + claim.status);
+        }
+        System.out.println(results.size() + " claim(s) found.");
+    }
+
+    private static void bulkStatusChange() {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.println("1. New -> Processing");
+        System.out.println("2. Processing -> Done");
+        System.out.print("Choose transition: ");
+        String choice = scanner.nextLine().trim();
+        StatusTransitionJob job;
+        if (choice.equals("1")) {
+            job = new StatusTransitionJob(ClaimStatus.NEW, ClaimStatus.PROCESSING);
+        } else if (choice.equals("2")) {
+            job = new StatusTransitionJob(ClaimStatus.PROCESSING, ClaimStatus.DONE);
+        } else {
+            System.out.println("Invalid choice.");
+            return;
+        }
+
+        try {
+            System.out.print("Only claims filed at least this many days ago (blank for any): ");
+            String days = scanner.nextLine().trim();
+            if (!days.isEmpty()) {
+                job.filedOnOrBefore(new Date(System.currentTimeMillis() - Long.parseLong(days) * 24 * 60 * 60 * 1000));
+            }
+            System.out.print("Minimum amount (blank for none): ");
+            String minInput = scanner.nextLine().trim();
+            System.out.print("Maximum amount (blank for none): ");
+            String maxInput = scanner.nextLine().trim();
+            if (!minInput.isEmpty() || !maxInput.isEmpty()) {
+                job.amountBetween(minInput.isEmpty() ? null : Double.parseDouble(minInput),
+                        maxInput.isEmpty() ? null : Double.parseDouble(maxInput));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Invalid number.");
+            return;
+        }
+
+        System.out.println("Plan: " + claimManager.explain(job.selection()));
+        StatusTransitionReport report = job.run(claimManager, System.out::println);
+        if (report.claimsMatched == 0) {
+            System.out.println("No matching claims found.");
+        } else if (report.claimsSkipped > 0) {
+            System.out.println("Claims edited or deleted while the job ran were left as they were.");
+        }
+    }
+
+    private static void viewClaimAsOf() {
+        if (claimVersions == null) {
+            System.out.println("Claim history is not available.");
+            return;
+        }
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Enter claim ID: ");
+        String claimId = scanner.nextLine().trim();
+        System.out.print("Enter date (YYYY-MM-DD): ");
+        Date date = parseDate(scanner.nextLine());
+
+        // Include the whole day
+        Claim claim = claimVersions.asOf(claimId, new Date(date.getTime() + 24L * 60 * 60 * 1000 - 1));
+        if (claim == null) {
+            System.out.println("Claim did not exist on that date.");
+            return;
+        }
+        System.out.println("ID: " + claim.id + ", Claim Date: " + claim.claimDate + ", Exam Date: " + claim.examDate +
+                ", Insured Person: " + claim.insuredPerson + ", Card Number: " + claim.cardNumber +
+                ", Amount: " + claim.claimAmount + ", Status: " + claim.status +
+                ", Banking Info: " + claim.receiverBankingInfo);
+        System.out.println("Version history: " + claimVersions.versionCount(claimId) + " version(s) kept.");
+    }
+
     private static void updateClaim() {
         Scanner scanner = new Scanner(System.in);
 
         System.out.println("Enter claim ID to update:");
         String id = scanner.nextLine();
 
-        Claim existingClaim = claimManager.getOne(id);
-        if (existingClaim == null) {
+        Claim storedClaim = claimManager.getOne(id);
+        if (storedClaim == null) {
             System.out.println("Claim not found.");
             return;
         }
+        Claim existingClaim = storedClaim.copy(); // Edit a copy so the claim history can see what changed
 
 
         System.out.println("Enter updated claim date (YYYY-MM-DD):");
@@ -560,14 +5807,20 @@ public class Main {
         existingClaim.examDate = parseDate(scanner.nextLine());
 
         System.out.println("Enter updated claim amount:");
-        existingClaim.claimAmount = scanner.nextDouble();
-        scanner.nextLine();
+        existingClaim.claimAmount = readAmount(scanner, "Enter updated claim amount:\n");
 
-        System.out.println("Enter updated claim status (New, Processing, Done):");
-        existingClaim.status = scanner.nextLine();
+        String status;
+        do {
+            System.out.println("Enter updated claim status (New, Processing, Done):");
+            status = scanner.nextLine().trim();
+            if (!isValidStatusChange(existingClaim.status, status)) {
+                System.out.println("Error: A " + existingClaim.status + " claim can only keep its status or move to the next one.");
+            }
+        } while (!isValidStatusChange(existingClaim.status, status));
+        existingClaim.status = ClaimStatus.parse(status).label;
 
         System.out.println("Enter updated receiver banking info:");
-        existingClaim.receiverBankingInfo = scanner.nextLine();
+        existingClaim.receiverBankingInfo = readBankingInfo(scanner, "Enter updated receiver banking info:\n");
 
         claimManager.update(existingClaim);
 
@@ -575,7 +5828,7 @@ public class Main {
     }
 
 
-    private static void manageCustomers(List<Customer> customers) {
+    private static void manageCustomers(CustomerGraph customers) {
         // Add, delete, view customers functionality
         Scanner scanner = new Scanner(System.in);
         while (true) {
@@ -584,7 +5837,9 @@ public class Main {
             System.out.println("2. Update Customer");
             System.out.println("3. Delete Customer");
             System.out.println("4. View All Customers");
-            System.out.println("5. Back to Main Menu");
+            System.out.println("5. Search Customers by Name");
+            System.out.println("6. View Family");
+            System.out.println("7. Back to Main Menu");
             System.out.print("Enter your choice: ");
             String choice = scanner.nextLine();
 
@@ -602,6 +5857,12 @@ public class Main {
                     viewAllCustomers(customers);
                     break;
                 case "5":
+                    searchCustomers(customers);
+                    break;
+                case "6":
+                    viewFamily(customers);
+                    break;
+                case "7":
                     return;
 
                 default:
@@ -611,7 +5872,7 @@ public class Main {
     }
 
 
-    private static void addCustomer(List<Customer> customers) {
+    private static void addCustomer(CustomerGraph customers) {
         Scanner scanner = new Scanner(System.in);
 
         String id;
@@ -639,23 +5900,23 @@ public class Main {
             role = "policy holder";
             // Show list of dependents for policy holder to choose from
             System.out.println("List of Dependents:");
-            int index = 1;
-            for (Customer customer : customers) {
+            List<Customer> availableDependents = new ArrayList<>();
+            for (Customer customer : customers.getAllCustomers()) {
                 if (customer.getRole().equalsIgnoreCase("dependent")) {
-                    System.out.println(index + ". ID: " + customer.getId() + ", Full Name: " + customer.getFullName());
-                    index++;
+                    availableDependents.add(customer);
+                    System.out.println(availableDependents.size() + ". ID: " + customer.getId() + ", Full Name: " + customer.getFullName());
                 }
             }
             System.out.println("Enter the numbers of dependents you want to choose (comma if you want to choose more than 1): ");
             String chosenDependentsInput = scanner.nextLine();
             String[] chosenDependentsArray = chosenDependentsInput.split(",");
             for (String dependentIndex : chosenDependentsArray) {
+                if (!dependentIndex.trim().matches("\\d+")) {
+                    continue;
+                }
                 int depIndex = Integer.parseInt(dependentIndex.trim()) - 1;
-                if (depIndex >= 0 && depIndex < customers.size()) {
-                    Customer dependent = customers.get(depIndex);
-                    if (dependent.getRole().equalsIgnoreCase("dependent")) {
-                        chosenDependents.add(dependent);
-                    }
+                if (depIndex >= 0 && depIndex < availableDependents.size()) {
+                    chosenDependents.add(availableDependents.get(depIndex));
                 }
             }
         } else if (roleChoice.equals("2")) {
@@ -680,8 +5941,11 @@ public class Main {
         Customer newCustomer = new Customer(id, fullName);
         newCustomer.setRole(role);
         newCustomer.setInsuranceCard(insuranceCard);
-        newCustomer.setDependents(chosenDependents);
-        customers.add(newCustomer);
+        customers.addCustomer(newCustomer);
+        for (Customer dependent : chosenDependents) {
+            customers.link(newCustomer.id, dependent.id);
+        }
+        customerNameIndex.put(newCustomer.id, newCustomer.fullName);
 
         System.out.println("Customer added successfully.");
     }
@@ -700,37 +5964,39 @@ public class Main {
 
 
 
-    private static boolean isDuplicateCustomerId(String customerId, List<Customer> customers) {
-        for (Customer customer : customers) {
-            if (customer.id.equals(customerId)) {
-                return true;
-            }
-        }
-        return false;
+    private static boolean isDuplicateCustomerId(String customerId, CustomerGraph customers) {
+        return customers.containsCustomer(customerId);
     }
 
-    private static void deleteCustomer(List<Customer> customers) {
+    private static void deleteCustomer(CustomerGraph customers) {
         Scanner scanner = new Scanner(System.in);
 
         System.out.print("Enter customer ID to delete: ");
         String id = scanner.nextLine();
 
-        Iterator<Customer> iterator = customers.iterator();
-        while (iterator.hasNext()) {
-            Customer customer = iterator.next();
-            if (customer.id.equals(id)) {
-                iterator.remove();
-                System.out.println("Customer deleted successfully.");
-                return;
-            }
+        if (!customers.containsCustomer(id)) {
+            System.out.println("Customer not found.");
+            return;
         }
 
-        System.out.println("Customer not found.");
+        // Dependents covered by no other policy holder can go with their policy holder
+        boolean cascade = false;
+        List<Customer> soleDependents = customers.getSoleDependents(id);
+        if (!soleDependents.isEmpty()) {
+            System.out.print("Also delete " + soleDependents.size() + " dependent(s) covered only by this customer? (y/n): ");
+            cascade = scanner.nextLine().trim().equalsIgnoreCase("y");
+        }
+
+        List<Customer> removed = customers.removeCustomer(id, cascade);
+        for (Customer customer : removed) {
+            customerNameIndex.remove(customer.id);
+        }
+        System.out.println("Customer deleted successfully." + (removed.size() > 1 ? " " + (removed.size() - 1) + " dependent(s) deleted with it." : ""));
     }
 
-    private static void viewAllCustomers(List<Customer> customers) {
+    private static void viewAllCustomers(CustomerGraph customers) {
         System.out.println("All Customers:");
-        for (Customer customer : customers) {
+        for (Customer customer : customers.getAllCustomers()) {
             System.out.println("ID: " + customer.id);
             System.out.println("Full Name: " + customer.fullName);
             System.out.println("Role: " + customer.getRole());
@@ -756,19 +6022,54 @@ public class Main {
         }
     }
 
-    private static void updateCustomer(List<Customer> customers) {
+    private static void searchCustomers(CustomerGraph customers) {
         Scanner scanner = new Scanner(System.in);
 
-        System.out.print("Enter customer ID to update: ");
-        String idToUpdate = scanner.nextLine();
+        System.out.print("Enter customer name (partial names and typos are fine): ");
+        String query = scanner.nextLine();
 
-        Customer customerToUpdate = null;
-        for (Customer customer : customers) {
-            if (customer.id.equals(idToUpdate)) {
-                customerToUpdate = customer;
-                break;
+        List<String> customerIds = customerNameIndex.search(query, 20);
+        if (customerIds.isEmpty()) {
+            System.out.println("No matching customers found.");
+            return;
+        }
+        for (String customerId : customerIds) {
+            Customer customer = findCustomerById(customerId, customers);
+            if (customer != null) {
+                System.out.println("ID: " + customer.id + ", Full Name: " + customer.fullName + ", Role: " + customer.getRole());
             }
         }
+    }
+
+    private static void viewFamily(CustomerGraph customers) {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Enter customer ID: ");
+        List<Customer> family = customers.getFamily(scanner.nextLine().trim());
+        if (family.isEmpty()) {
+            System.out.println("Customer not found.");
+            return;
+        }
+
+        // Claims are found through the card number index, one lookup per family member
+        int familyClaims = 0;
+        for (Customer member : family) {
+            List<Claim> claims = member.insuranceCard == null ? Collections.emptyList()
+                    : claimManager.query(new ClaimQuery().cardNumber(member.insuranceCard.cardNumber));
+            familyClaims += claims.size();
+            System.out.println("ID: " + member.id + ", Full Name: " + member.fullName + ", Role: " + member.getRole() +
+                    ", Claims: " + claims.size());
+        }
+        System.out.println(family.size() + " family member(s), " + familyClaims + " claim(s) in total.");
+    }
+
+    private static void updateCustomer(CustomerGraph customers) {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Enter customer ID to update: ");
+        String idToUpdate = scanner.nextLine();
+
+        Customer customerToUpdate = customers.getCustomer(idToUpdate);
 
         if (customerToUpdate == null) {
             System.out.println("Customer not found.");
@@ -779,12 +6080,13 @@ public class Main {
         System.out.print("Enter updated full name: ");
         String updatedFullName = scanner.nextLine();
         customerToUpdate.fullName = updatedFullName;
+        customerNameIndex.put(customerToUpdate.id, updatedFullName);
 
 
 
         System.out.print("Enter updated insurance card number: ");
         String newCardNumber = scanner.nextLine();
-        customerToUpdate.updateInsuranceCardNumber(newCardNumber);
+        customers.changeCardNumber(customerToUpdate, newCardNumber);
 
         System.out.println("Customer information updated successfully.");
     }
@@ -792,7 +6094,7 @@ public class Main {
 
 
 
-    private static void manageInsuranceCards(List<InsuranceCard> insuranceCards) {
+    private static void manageInsuranceCards(CustomerGraph insuranceCards) {
         // Add, delete, view insurance cards functionality
         Scanner scanner = new Scanner(System.in);
         while (true) {
@@ -822,7 +6124,7 @@ public class Main {
         }
     }
 
-    private static void addInsuranceCard(List<InsuranceCard> insuranceCards) {
+    private static void addInsuranceCard(CustomerGraph insuranceCards) {
         Scanner scanner = new Scanner(System.in);
 
         String cardNumber;
@@ -844,33 +6146,42 @@ public class Main {
         Date expirationDate = parseDate(scanner.nextLine());
 
         InsuranceCard newCard = new InsuranceCard(cardNumber, cardHolder, policyOwner, expirationDate);
-        insuranceCards.add(newCard);
+        if (!insuranceCards.addCard(newCard)) {
+            System.out.println("Error: Insurance card with the same number already exists.");
+            return;
+        }
 
         System.out.println("Insurance card added successfully.");
     }
 
-    private static void deleteInsuranceCard(List<InsuranceCard> insuranceCards) {
+    private static void deleteInsuranceCard(CustomerGraph insuranceCards) {
         Scanner scanner = new Scanner(System.in);
 
         System.out.print("Enter card number to delete: ");
         String cardNumber = scanner.nextLine();
 
-        Iterator<InsuranceCard> iterator = insuranceCards.iterator();
-        while (iterator.hasNext()) {
-            InsuranceCard card = iterator.next();
-            if (card.cardNumber.equals(cardNumber)) {
-                iterator.remove();
-                System.out.println("Insurance card deleted successfully.");
-                return;
-            }
+        if (insuranceCards.getCard(cardNumber) == null) {
+            System.out.println("Insurance card not found.");
+            return;
+        }
+
+        // A card still held by a customer or named on a claim cannot be deleted. The card filters of the partitions
+        // and the archive keep the claim check to the few places that may hold the card.
+        int holders = insuranceCards.getCustomersByCard(cardNumber).size();
+        boolean hasClaims = !claimManager.query(new ClaimQuery().cardNumber(cardNumber).limit(1)).isEmpty();
+        if (holders > 0 || hasClaims) {
+            System.out.println("Error: Insurance card is still in use by " + holders + " customer(s)" +
+                    (hasClaims ? " and by claims" : "") + ".");
+            return;
         }
 
-        System.out.println("Insurance card not found.");
+        insuranceCards.removeCard(cardNumber);
+        System.out.println("Insurance card deleted successfully.");
     }
 
-    private static void viewAllInsuranceCards(List<InsuranceCard> insuranceCards) {
+    private static void viewAllInsuranceCards(CustomerGraph insuranceCards) {
         System.out.println("All Insurance Cards:");
-        for (InsuranceCard card : insuranceCards) {
+        for (InsuranceCard card : insuranceCards.getAllCards()) {
             System.out.println("Card Number: " + card.cardNumber);
             System.out.println("Card Holder: " + card.cardHolder);
             System.out.println("Policy Owner: " + card.policyOwner);
@@ -901,11 +6212,11 @@ public class Main {
     }
 
 
-    private static void addDependent(Customer policyHolder, List<Customer> customers) {
+    private static void addDependent(Customer policyHolder, CustomerGraph customers) {
         Scanner scanner = new Scanner(System.in);
 
         System.out.println("Available Dependents:");
-        for (Customer customer : customers) {
+        for (Customer customer : customers.getAllCustomers()) {
             if (!customer.id.equals(policyHolder.id)) {
                 System.out.println("ID: " + customer.id + ", Full Name: " + customer.fullName);
             }
@@ -916,20 +6227,238 @@ public class Main {
 
         Customer dependent = findCustomerById(dependentId, customers);
         if (dependent != null) {
-            policyHolder.addDependent(dependent);
+            customers.link(policyHolder.id, dependent.id);
             System.out.println(dependent.fullName + " added as a dependent to " + policyHolder.fullName);
         } else {
             System.out.println("Dependent not found.");
         }
     }
 
-    private static Customer findCustomerById(String id, List<Customer> customers) {
-        for (Customer customer : customers) {
-            if (customer.id.equals(id)) {
-                return customer;
+    private static Customer findCustomerById(String id, CustomerGraph customers) {
+        return customers.getCustomer(id);
+    }
+
+}
+
+// Times the same queries through the planner and as forced full scans over synthetic claims.
+// Run with: java ClaimQueryBenchmark [claimCount]
+class ClaimQueryBenchmark {
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 10;
+
+    public static void main(String[] args) {
+        int claimCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        SimpleClaimProcessManager manager = new SimpleClaimProcessManager();
+        String[] statuses = {"New", "Processing", "Done"};
+        long start = new GregorianCalendar(2020, Calendar.JANUARY, 1).getTimeInMillis();
+        long day = 24L * 60 * 60 * 1000;
+        Random random = new Random(42);
+        for (int i = 0; i < claimCount; i++) {
+            Date claimDate = new Date(start + random.nextInt(5 * 365) * day);
+            manager.add(new Claim(String.format("f-%010d", i), claimDate, "Person " + random.nextInt(claimCount / 10 + 1),
+                    String.format("%010d", random.nextInt(claimCount / 5 + 1)), new Date(claimDate.getTime() - 5 * day),
+                    null, random.nextInt(5000), statuses[random.nextInt(statuses.length)], ""));
+        }
+        System.out.println(claimCount + " claims generated");
+
+        Date weekStart = new Date(start + 400 * day);
+        Map<String, ClaimQuery> queries = new LinkedHashMap<>();
+        queries.put("New claims on one card", new ClaimQuery().status("New").cardNumber(String.format("%010d", 7)));
+        queries.put("Claims filed in one week", new ClaimQuery().claimDateBetween(weekStart, new Date(weekStart.getTime() + 6 * day)));
+        queries.put("Top 20 amounts over 4990", new ClaimQuery().amountBetween(4990.0, null)
+                .sortBy(ClaimField.CLAIM_AMOUNT, false).limit(20));
+        queries.put("One insured person, newest first", new ClaimQuery().insuredPerson("person 12")
+                .sortBy(ClaimField.CLAIM_DATE, true));
+        queries.put("All Processing claims", new ClaimQuery().status("Processing"));
+
+        for (Map.Entry<String, ClaimQuery> entry : queries.entrySet()) {
+            ClaimQuery planned = entry.getValue();
+            ClaimQuery scanned = copyWithoutIndexes(planned);
+            double plannedMillis = medianMillis(manager, planned);
+            double scannedMillis = medianMillis(manager, scanned);
+            System.out.println(entry.getKey() + ": " + manager.query(planned).size() + " rows");
+            System.out.println("  plan: " + manager.explain(planned));
+            System.out.printf("  planner %.3f ms, full scan %.3f ms, %.1fx%n", plannedMillis, scannedMillis,
+                    scannedMillis / plannedMillis);
+        }
+    }
+
+    private static ClaimQuery copyWithoutIndexes(ClaimQuery query) {
+        ClaimQuery copy = new ClaimQuery().status(query.status).cardNumber(query.cardNumber)
+                .insuredPerson(query.insuredPerson).claimDateBetween(query.claimDateFrom, query.claimDateTo)
+                .examDateBetween(query.examDateFrom, query.examDateTo).amountBetween(query.minAmount, query.maxAmount)
+                .sortBy(query.sortBy, query.descending).limit(query.limit);
+        return copy.withoutIndexes();
+    }
+
+    private static double medianMillis(ClaimProcessManager manager, ClaimQuery query) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            manager.query(query);
+        }
+        double[] millis = new double[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long started = System.nanoTime();
+            manager.query(query);
+            millis[i] = (System.nanoTime() - started) / 1e6;
+        }
+        Arrays.sort(millis);
+        return millis[MEASURED_RUNS / 2];
+    }
+}
+
+// Times claim updates with and without a ClaimHistory and reports what each recorded delta costs in memory and in
+// the log. Run with: java ClaimHistoryBenchmark [claimCount] [updateCount]
+class ClaimHistoryBenchmark {
+    private static final int WARMUP_UPDATES = 50000;
+
+    public static void main(String[] args) throws IOException {
+        int claimCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int updateCount = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+        List<Claim> claims = generate(claimCount);
+
+        SimpleClaimProcessManager plain = new SimpleClaimProcessManager();
+        claims.forEach(plain::add);
+        File log = File.createTempFile("claim-history", ".log");
+        log.deleteOnExit();
+        log.delete();
+        SimpleClaimProcessManager inner = new SimpleClaimProcessManager();
+        claims.forEach(inner::add); // Existing claims, so only the updates are recorded
+        ClaimHistory history = new ClaimHistory(log.getPath());
+        VersionedClaimProcessManager versioned = new VersionedClaimProcessManager(inner, history);
+        // Both warmed up before either is timed, so neither pays for compiling the shared update path
+        run(plain, claims, WARMUP_UPDATES, 1);
+        run(versioned, claims, WARMUP_UPDATES, 1);
+
+        double plainMicros = run(plain, claims, updateCount, 2);
+        long deltasBefore = history.deltaCount();
+        long logBefore = log.length();
+        long heapBefore = usedHeap();
+        double versionedMicros = run(versioned, claims, updateCount, 2);
+        long heapAfter = usedHeap();
+        long deltas = history.deltaCount() - deltasBefore;
+        versioned.close();
+
+        System.out.println(claimCount + " claims, " + updateCount + " amount updates");
+        System.out.printf("  update without history %.2f us, with history %.2f us%n", plainMicros, versionedMicros);
+        System.out.printf("  %d deltas, %.0f bytes each in memory, %.0f bytes each in the log%n", deltas,
+                (double) (heapAfter - heapBefore) / deltas, (double) (log.length() - logBefore) / deltas);
+    }
+
+    private static List<Claim> generate(int claimCount) {
+        String[] statuses = {"New", "Processing", "Done"};
+        long start = new GregorianCalendar(2020, Calendar.JANUARY, 1).getTimeInMillis();
+        long day = 24L * 60 * 60 * 1000;
+        Random random = new Random(42);
+        List<Claim> claims = new ArrayList<>(claimCount);
+        for (int i = 0; i < claimCount; i++) {
+            Date claimDate = new Date(start + random.nextInt(5 * 365) * day);
+            claims.add(new Claim(String.format("f-%010d", i), claimDate, "Person " + random.nextInt(claimCount / 10 + 1),
+                    String.format("%010d", random.nextInt(claimCount / 5 + 1)), new Date(claimDate.getTime() - 5 * day),
+                    null, random.nextInt(5000), statuses[random.nextInt(statuses.length)], ""));
+        }
+        return claims;
+    }
+
+    // Mean microseconds per update; each update replaces a random claim with a copy carrying a new amount
+    private static double run(ClaimProcessManager manager, List<Claim> claims, int updates, long seed) {
+        Random random = new Random(seed);
+        long started = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            Claim changed = manager.getOne(claims.get(random.nextInt(claims.size())).id).copy();
+            changed.claimAmount = random.nextInt(5000);
+            manager.update(changed);
+        }
+        return (System.nanoTime() - started) / 1e3 / updates;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// Starts 1, 2 and 4 local claim shard processes in turn (or the counts given after the claim count) and measures
+// loading, pipelined point reads and scatter-gather aggregates over the same synthetic claims. Throughput can only
+// grow with the shard count when there is a processor per shard; scaling has not yet been measured on such a machine.
+class ClaimShardBenchmark {
+    private static final int READS = 200000;
+    private static final int READ_WINDOW = 1000; // Reads in flight before waiting for the oldest
+    private static final int AGGREGATE_RUNS = 10;
+
+    public static void main(String[] args) {
+        int claimCount = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int[] shardCounts = args.length > 1
+                ? Arrays.stream(Arrays.copyOfRange(args, 1, args.length)).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1, 2, 4};
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.println(claimCount + " claims, " + processors + " processor(s)");
+        if (Arrays.stream(shardCounts).max().orElse(1) > processors) {
+            System.out.println("Fewer processors than shards: the larger shard counts share processors and cannot show scaling.");
+        }
+
+        String[] statuses = {"New", "Processing", "Done"};
+        long start = new GregorianCalendar(2020, Calendar.JANUARY, 1).getTimeInMillis();
+        long day = 24L * 60 * 60 * 1000;
+        List<Claim> claims = new ArrayList<>(claimCount);
+        Random random = new Random(42);
+        for (int i = 0; i < claimCount; i++) {
+            Date claimDate = new Date(start + random.nextInt(5 * 365) * day);
+            claims.add(new Claim(String.format("f-%010d", i), claimDate, "Person " + random.nextInt(claimCount / 10 + 1),
+                    String.format("%010d", random.nextInt(claimCount / 5 + 1)), new Date(claimDate.getTime() - 5 * day),
+                    null, random.nextInt(5000), statuses[random.nextInt(statuses.length)], ""));
+        }
+
+        for (int shardCount : shardCounts) {
+            int heapMegabytes = 256 + claimCount / shardCount / 500;
+            ShardedClaimProcessManager manager = ShardedClaimProcessManager.startLocal(shardCount, heapMegabytes + "m", null);
+            try {
+                System.out.println(shardCount + " shard(s):");
+
+                long started = System.nanoTime();
+                for (int i = 0; i < claims.size(); i += 10000) {
+                    manager.addAll(claims.subList(i, Math.min(i + 10000, claims.size())));
+                }
+                long loaded = manager.aggregate(new ClaimQuery()).count; // Waits for every shard to finish loading
+                System.out.printf("  load %d claims: %.0f claims/s%n", loaded, loaded / seconds(started));
+
+                started = System.nanoTime();
+                for (int i = 0; i < READS / 10; i++) {
+                    manager.getOne(claims.get(random.nextInt(claimCount)).id);
+                }
+                System.out.printf("  one-at-a-time getOne: %.0f reads/s%n", READS / 10 / seconds(started));
+
+                started = System.nanoTime();
+                ArrayDeque<CompletableFuture<Claim>> inFlight = new ArrayDeque<>();
+                for (int i = 0; i < READS; i++) {
+                    if (inFlight.size() == READ_WINDOW) {
+                        inFlight.poll().join();
+                    }
+                    inFlight.add(manager.getOneAsync(claims.get(random.nextInt(claimCount)).id));
+                }
+                while (!inFlight.isEmpty()) {
+                    inFlight.poll().join();
+                }
+                System.out.printf("  pipelined getOne: %.0f reads/s%n", READS / seconds(started));
+
+                ClaimQuery processing = new ClaimQuery().status("Processing").amountBetween(1000.0, null).withoutIndexes();
+                manager.aggregate(processing); // Warm up
+                started = System.nanoTime();
+                ClaimAggregate aggregate = null;
+                for (int i = 0; i < AGGREGATE_RUNS; i++) {
+                    aggregate = manager.aggregate(processing);
+                }
+                System.out.printf("  scatter-gather scan aggregate: %.1f ms (%s)%n",
+                        seconds(started) * 1000 / AGGREGATE_RUNS, aggregate);
+            } finally {
+                manager.close();
             }
         }
-        return null;
     }
 
+    private static double seconds(long startedNanos) {
+        return (System.nanoTime() - startedNanos) / 1e9;
+    }
 }